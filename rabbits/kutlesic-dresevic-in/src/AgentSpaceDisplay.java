@@ -0,0 +1,88 @@
+import uchicago.src.collection.BaseMatrix;
+import uchicago.src.sim.space.Discrete2DSpace;
+
+import java.awt.Dimension;
+
+/**
+ * Read-only adapter that exposes the agent cells of a {@link RabbitsGrassSimulationSpace} as a RePast
+ * {@link Discrete2DSpace}, so they can be drawn and probed by Object2DDisplay. Agent objects are taken from the
+ * {@link AgentStore} only when the display asks for them.
+ */
+public class AgentSpaceDisplay implements Discrete2DSpace {
+
+    private final RabbitsGrassSimulationSpace space;
+    private final AgentStore agents;
+    private final BaseMatrix matrix;
+
+    public AgentSpaceDisplay(RabbitsGrassSimulationSpace space, AgentStore agents) {
+        this.space = space;
+        this.agents = agents;
+        this.matrix = new AgentMatrix();
+    }
+
+    public int getSizeX() {
+        return space.getSizeX();
+    }
+
+    public int getSizeY() {
+        return space.getSizeY();
+    }
+
+    public Dimension getSize() {
+        return new Dimension(space.getSizeX(), space.getSizeY());
+    }
+
+    public Object getObjectAt(int x, int y) {
+        int slot = space.getAgentAt(x, y);
+        return slot < 0 ? null : agents.getAgent(slot);
+    }
+
+    public double getValueAt(int x, int y) {
+        return space.getAgentAt(x, y) < 0 ? 0 : 1;
+    }
+
+    public void putObjectAt(int x, int y, Object object) {
+        throw new UnsupportedOperationException("Agent space display is read-only");
+    }
+
+    public void putValueAt(int x, int y, double value) {
+        throw new UnsupportedOperationException("Agent space display is read-only");
+    }
+
+    public BaseMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * Object2DDisplay reads the cells through the matrix of the space when it has no object list.
+     */
+    private class AgentMatrix implements BaseMatrix {
+
+        public Object get(int x, int y) {
+            return getObjectAt(x, y);
+        }
+
+        public void put(int x, int y, Object object) {
+            throw new UnsupportedOperationException("Agent space display is read-only");
+        }
+
+        public Object remove(int x, int y) {
+            throw new UnsupportedOperationException("Agent space display is read-only");
+        }
+
+        public int size() {
+            return space.getSizeX() * space.getSizeY();
+        }
+
+        public int getNumRows() {
+            return space.getSizeY();
+        }
+
+        public int getNumCols() {
+            return space.getSizeX();
+        }
+
+        public void trim() {
+        }
+    }
+}
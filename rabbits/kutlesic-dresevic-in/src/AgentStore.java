@@ -0,0 +1,279 @@
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Struct-of-arrays storage of the rabbits. Every agent lives in a slot and its attributes are kept in parallel
+ * primitive arrays, so births and deaths never copy the population. A dead agent is removed by moving the agent
+ * from the last slot into its place, which means that slots are only stable until the next removal.
+ * <p>
+ * Agents born during a tick are appended after the slots that are being stepped, so they are deferred until the
+ * next tick without any copying.
+ * <p>
+ * Every energy change goes through the store, which keeps the {@link EnergyBuckets} of the living agents up to date.
+ * Concurrent steppers pass their own buckets to the energy changing methods.
+ */
+public class AgentStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] x;
+    private int[] y;
+    private int[] energy;
+    private int[] lifeTime;
+    private int[] birthFrequency;
+    private int[] bornBabies;
+    private int[] unableMoves;
+    private int[] id;
+    // views are only created when somebody (the RePast display) asks for an agent object
+    private RabbitsGrassSimulationAgent[] views;
+
+    private final EnergyBuckets energyBuckets;
+
+    private int size = 0;
+    private int agentID = 0;
+
+    public AgentStore(int energyBucketCount, int energyBucketWidth) {
+        energyBuckets = new EnergyBuckets(energyBucketCount, energyBucketWidth);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        x = new int[capacity];
+        y = new int[capacity];
+        energy = new int[capacity];
+        lifeTime = new int[capacity];
+        birthFrequency = new int[capacity];
+        bornBabies = new int[capacity];
+        unableMoves = new int[capacity];
+        id = new int[capacity];
+        views = new RabbitsGrassSimulationAgent[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= id.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, id.length * 2);
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        energy = Arrays.copyOf(energy, newCapacity);
+        lifeTime = Arrays.copyOf(lifeTime, newCapacity);
+        birthFrequency = Arrays.copyOf(birthFrequency, newCapacity);
+        bornBabies = Arrays.copyOf(bornBabies, newCapacity);
+        unableMoves = Arrays.copyOf(unableMoves, newCapacity);
+        id = Arrays.copyOf(id, newCapacity);
+        views = Arrays.copyOf(views, newCapacity);
+    }
+
+    /**
+     * Reserves the next slot for a new agent with the given energy. The agent does not exist until
+     * {@link #commit()} is called, so a failed placement leaves the store untouched.
+     *
+     * @return the reserved slot
+     */
+    public int reserve(int initialEnergy) {
+        ensureCapacity(size + 1);
+        int slot = size;
+        x[slot] = -1;
+        y[slot] = -1;
+        energy[slot] = initialEnergy;
+        lifeTime[slot] = 0;
+        birthFrequency[slot] = 0;
+        bornBabies[slot] = 0;
+        unableMoves[slot] = 0;
+        views[slot] = null;
+        return slot;
+    }
+
+    /**
+     * Turns the slot returned by the last {@link #reserve(int)} into a living agent.
+     */
+    public void commit() {
+        energyBuckets.add(energy[size]);
+        id[size] = ++agentID;
+        size++;
+    }
+
+    /**
+     * Removes the agent in the given slot by moving the last agent into it.
+     *
+     * @return the slot the moved agent came from, or -1 if the removed agent was the last one
+     */
+    public int remove(int slot) {
+        int last = size - 1;
+        if (views[slot] != null) {
+            views[slot].detach();
+        }
+        energyBuckets.remove(energy[slot]);
+        size--;
+        if (slot == last) {
+            views[last] = null;
+            return -1;
+        }
+
+        x[slot] = x[last];
+        y[slot] = y[last];
+        energy[slot] = energy[last];
+        lifeTime[slot] = lifeTime[last];
+        birthFrequency[slot] = birthFrequency[last];
+        bornBabies[slot] = bornBabies[last];
+        unableMoves[slot] = unableMoves[last];
+        id[slot] = id[last];
+        views[slot] = views[last];
+        views[last] = null;
+        if (views[slot] != null) {
+            views[slot].setSlot(slot);
+        }
+        return last;
+    }
+
+    /**
+     * @return the lightweight agent object for the slot, created on first request
+     */
+    public RabbitsGrassSimulationAgent getAgent(int slot) {
+        if (views[slot] == null) {
+            views[slot] = new RabbitsGrassSimulationAgent(this, slot);
+        }
+        return views[slot];
+    }
+
+    /**
+     * @return a live list of the agents, without copying the store
+     */
+    public List<RabbitsGrassSimulationAgent> asList() {
+        return new AbstractList<RabbitsGrassSimulationAgent>() {
+            @Override
+            public RabbitsGrassSimulationAgent get(int index) {
+                return getAgent(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public void reproduce(int slot, float birthGivingLoss) {
+        int newEnergy = (int) ((1 - birthGivingLoss) * energy[slot]);
+        energyBuckets.change(energy[slot], newEnergy);
+        energy[slot] = newEnergy;
+        birthFrequency[slot] = 0;
+        bornBabies[slot]++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public EnergyBuckets getEnergyBuckets() {
+        return energyBuckets;
+    }
+
+    public int getLivingAgents() {
+        return energyBuckets.getLivingAgents();
+    }
+
+    public int getAgentID() {
+        return agentID;
+    }
+
+    public int getX(int slot) {
+        return x[slot];
+    }
+
+    public int getY(int slot) {
+        return y[slot];
+    }
+
+    public void setXY(int slot, int newX, int newY) {
+        x[slot] = newX;
+        y[slot] = newY;
+    }
+
+    public int getEnergy(int slot) {
+        return energy[slot];
+    }
+
+    public void addEnergy(int slot, int amount) {
+        addEnergy(slot, amount, energyBuckets);
+    }
+
+    /**
+     * Changes the energy and records the change in the given buckets instead of the ones of the store.
+     */
+    public void addEnergy(int slot, int amount, EnergyBuckets buckets) {
+        buckets.change(energy[slot], energy[slot] + amount);
+        energy[slot] += amount;
+    }
+
+    public int getLifeTime(int slot) {
+        return lifeTime[slot];
+    }
+
+    public void addLifeTime(int slot, int ticks) {
+        lifeTime[slot] += ticks;
+    }
+
+    public int getBirthFrequency(int slot) {
+        return birthFrequency[slot];
+    }
+
+    public void incrementBirthFrequency(int slot) {
+        birthFrequency[slot]++;
+    }
+
+    public int getBornBabies(int slot) {
+        return bornBabies[slot];
+    }
+
+    public int getUnableMoves(int slot) {
+        return unableMoves[slot];
+    }
+
+    public void setUnableMoves(int slot, int moves) {
+        unableMoves[slot] = moves;
+    }
+
+    public int getId(int slot) {
+        return id[slot];
+    }
+
+    /**
+     * @return bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    long getSnapshotSize() {
+        return (2 + 8L * size) * Integer.BYTES;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(agentID);
+        buffer.putInt(size);
+        for (int[] values : new int[][]{x, y, energy, lifeTime, birthFrequency, bornBabies, unableMoves, id}) {
+            RabbitsGrassSimulationCheckpoint.putInts(buffer, values, size);
+        }
+    }
+
+    /**
+     * Replaces the agents with the ones written by {@link #writeTo(ByteBuffer)} and recounts the energy buckets.
+     */
+    void readFrom(ByteBuffer buffer) {
+        for (int slot = 0; slot < size; slot++) {
+            if (views[slot] != null) {
+                views[slot].detach();
+            }
+        }
+        agentID = buffer.getInt();
+        size = buffer.getInt();
+        allocate(Math.max(INITIAL_CAPACITY, size));
+        for (int[] values : new int[][]{x, y, energy, lifeTime, birthFrequency, bornBabies, unableMoves, id}) {
+            RabbitsGrassSimulationCheckpoint.getInts(buffer, values, size);
+        }
+        energyBuckets.clear();
+        for (int slot = 0; slot < size; slot++) {
+            energyBuckets.add(energy[slot]);
+        }
+    }
+}
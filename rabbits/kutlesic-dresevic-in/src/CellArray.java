@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-length array of the int values of the grid cells, cell (x, y) at index x + y * sizeX. The simulation space
+ * keeps the grass amounts and the occupancy in cell arrays, either on the heap or off the heap, so very large grids
+ * neither need a huge heap nor make the garbage collector scan gigabytes of cells.
+ */
+public interface CellArray {
+
+    int get(int index);
+
+    void set(int index, int value);
+
+    int length();
+
+    /*
+     * Snapshots copy the cells in bulk, the buffer is at the position of the first value.
+     */
+
+    void putInts(ByteBuffer buffer, int length);
+
+    void getInts(ByteBuffer buffer, int length);
+
+    /**
+     * Writes values that fit in a byte, one byte each.
+     */
+    void putBytes(ByteBuffer buffer, int length);
+
+    void getBytes(ByteBuffer buffer, int length);
+
+    /**
+     * @param bytesPerCell 1 if every value fits in a byte, otherwise 4, only used off the heap
+     * @param offHeap      whether the values are kept in direct buffers instead of an int array
+     */
+    static CellArray allocate(int length, int bytesPerCell, boolean offHeap) {
+        return offHeap ? new DirectCellArray(length, bytesPerCell) : new HeapCellArray(length);
+    }
+}
@@ -0,0 +1,115 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Grass amounts of the rabbits grass simulation kept in a flat {@link CellArray}, on or off the heap. Cell (x, y) is
+ * stored at index x + y * sizeX, so growing or eating grass never boxes an Integer.
+ */
+public class DenseGrassField extends GrassField {
+
+    // bulk growth pays off once there is at least one grass unit for every BULK_GROWTH_CELLS cells
+    private static final int BULK_GROWTH_CELLS = 8;
+
+    private final CellArray cells;
+    private int totalGrassAmount;
+
+    public DenseGrassField(int sizeX, int sizeY, int boundary) {
+        this(sizeX, sizeY, boundary, false);
+    }
+
+    public DenseGrassField(int sizeX, int sizeY, int boundary, boolean offHeap) {
+        super(sizeX, sizeY, boundary);
+        this.cells = CellArray.allocate(sizeX * sizeY, boundary <= Byte.MAX_VALUE ? 1 : Integer.BYTES, offHeap);
+        this.totalGrassAmount = 0;
+    }
+
+    public int getGrassAt(int x, int y) {
+        return cells.get(x + y * sizeX);
+    }
+
+    public int addGrassAt(int x, int y) {
+        int index = x + y * sizeX;
+        int grassAmount = cells.get(index);
+        if (grassAmount >= boundary) {
+            return 0;
+        }
+        cells.set(index, grassAmount + 1);
+        totalGrassAmount++;
+        return 1;
+    }
+
+    /**
+     * Places the units one at a time, or for many units fills the cells in one bulk pass with the same distribution.
+     */
+    public void growGrass(int grass, Random random) {
+        if (grass >= cells.length() / BULK_GROWTH_CELLS) {
+            growGrassInBulk(grass, random);
+            return;
+        }
+        for (int i = 0; i < grass; i++) {
+            addGrassAt(random.nextInt(sizeX), random.nextInt(sizeY));
+        }
+    }
+
+    /**
+     * The numbers of units that land on the cells follow the multinomial distribution, which is sampled cell by cell:
+     * given the units left, the units of a cell are binomial with the probability 1 / (cells left). Grass only grows
+     * here, so adding the units one by one with clamping is the same as clamping their sum once.
+     */
+    private void growGrassInBulk(int grass, Random random) {
+        int remaining = grass;
+        int grown = 0;
+        for (int index = 0; index < cells.length() && remaining > 0; index++) {
+            int units = index == cells.length() - 1 ? remaining
+                    : binomial(remaining, 1.0 / (cells.length() - index), Integer.MAX_VALUE, random);
+            remaining -= units;
+            int grassAmount = cells.get(index);
+            int newGrassAmount = Math.min(grassAmount + units, boundary);
+            grown += newGrassAmount - grassAmount;
+            cells.set(index, newGrassAmount);
+        }
+        totalGrassAmount += grown;
+    }
+
+    public int removeGrassAt(int x, int y) {
+        int index = x + y * sizeX;
+        int grassAmount = cells.get(index);
+        cells.set(index, 0);
+        totalGrassAmount -= grassAmount;
+        return grassAmount;
+    }
+
+    public int clearGrassAt(int x, int y, Random random) {
+        int index = x + y * sizeX;
+        int grassAmount = cells.get(index);
+        cells.set(index, 0);
+        return grassAmount;
+    }
+
+    public void subtractFromTotal(int grassAmount) {
+        totalGrassAmount -= grassAmount;
+    }
+
+    public int getTotalGrassAmount() {
+        return totalGrassAmount;
+    }
+
+    /**
+     * @return bytes written by {@link #writeTo(ByteBuffer)}, one per cell since the boundary fits in a byte
+     */
+    long getSnapshotSize() {
+        return cells.length();
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        cells.putBytes(buffer, cells.length());
+    }
+
+    void readFrom(ByteBuffer buffer) {
+        cells.getBytes(buffer, cells.length());
+        totalGrassAmount = 0;
+        for (int index = 0; index < cells.length(); index++) {
+            totalGrassAmount += cells.get(index);
+        }
+    }
+}
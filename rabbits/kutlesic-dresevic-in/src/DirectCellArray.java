@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Cell values off the heap, in direct buffers of CHUNK_CELLS cells each, so an array is not limited by the 2 GB
+ * capacity of a single buffer. Values that fit in a byte take one byte per cell, all others take four. The memory is
+ * released when the array is garbage collected, which costs the collector nothing in between.
+ */
+public class DirectCellArray implements CellArray {
+
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_CELLS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_CELLS - 1;
+
+    private final ByteBuffer[] chunks;
+    private final int length;
+    private final boolean bytes;
+
+    public DirectCellArray(int length, int bytesPerCell) {
+        if (bytesPerCell != 1 && bytesPerCell != Integer.BYTES) {
+            throw new IllegalArgumentException("Cells take 1 or 4 bytes, not " + bytesPerCell);
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative number of cells " + length);
+        }
+        this.length = length;
+        this.bytes = bytesPerCell == 1;
+        chunks = new ByteBuffer[chunksOf(length)];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            long cells = Math.min(CHUNK_CELLS, length - ((long) chunk << CHUNK_SHIFT));
+            long chunkBytes = cells * bytesPerCell;
+            if (chunkBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Chunk of " + chunkBytes
+                        + " bytes exceeds the capacity of a buffer");
+            }
+            // direct buffers are zeroed like a new int array
+            chunks[chunk] = ByteBuffer.allocateDirect((int) chunkBytes).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public int get(int index) {
+        ByteBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        int offset = index & CHUNK_MASK;
+        return bytes ? chunk.get(offset) : chunk.getInt(offset << 2);
+    }
+
+    public void set(int index, int value) {
+        ByteBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        int offset = index & CHUNK_MASK;
+        if (bytes) {
+            chunk.put(offset, (byte) value);
+        } else {
+            chunk.putInt(offset << 2, value);
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Copies the chunks as they are if the buffer has the same byte order, otherwise through int views.
+     */
+    public void putInts(ByteBuffer buffer, int length) {
+        if (bytes) {
+            for (int index = 0; index < length; index++) {
+                buffer.putInt(get(index));
+            }
+            return;
+        }
+        for (int chunk = 0; chunk < chunksOf(length); chunk++) {
+            ByteBuffer cells = cellsOf(chunk, length, Integer.BYTES);
+            if (buffer.order() == ByteOrder.nativeOrder()) {
+                buffer.put(cells);
+            } else {
+                buffer.asIntBuffer().put(cells.order(ByteOrder.nativeOrder()).asIntBuffer());
+                buffer.position(buffer.position() + cells.remaining());
+            }
+        }
+    }
+
+    public void getInts(ByteBuffer buffer, int length) {
+        if (bytes) {
+            for (int index = 0; index < length; index++) {
+                set(index, buffer.getInt());
+            }
+            return;
+        }
+        for (int chunk = 0; chunk < chunksOf(length); chunk++) {
+            ByteBuffer cells = cellsOf(chunk, length, Integer.BYTES);
+            ByteBuffer values = buffer.duplicate().order(buffer.order());
+            values.limit(values.position() + cells.remaining());
+            if (buffer.order() == ByteOrder.nativeOrder()) {
+                cells.put(values);
+            } else {
+                cells.order(ByteOrder.nativeOrder()).asIntBuffer().put(values.asIntBuffer());
+            }
+            buffer.position(values.limit());
+        }
+    }
+
+    public void putBytes(ByteBuffer buffer, int length) {
+        if (!bytes) {
+            for (int index = 0; index < length; index++) {
+                buffer.put((byte) get(index));
+            }
+            return;
+        }
+        for (int chunk = 0; chunk < chunksOf(length); chunk++) {
+            buffer.put(cellsOf(chunk, length, 1));
+        }
+    }
+
+    public void getBytes(ByteBuffer buffer, int length) {
+        if (!bytes) {
+            for (int index = 0; index < length; index++) {
+                set(index, buffer.get());
+            }
+            return;
+        }
+        for (int chunk = 0; chunk < chunksOf(length); chunk++) {
+            ByteBuffer cells = cellsOf(chunk, length, 1);
+            ByteBuffer values = buffer.duplicate();
+            values.limit(values.position() + cells.remaining());
+            cells.put(values);
+            buffer.position(values.limit());
+        }
+    }
+
+    private static int chunksOf(int length) {
+        return (int) (((long) length + CHUNK_CELLS - 1) >>> CHUNK_SHIFT);
+    }
+
+    /**
+     * @return view of the bytes of the first length cells that are in the chunk
+     */
+    private ByteBuffer cellsOf(int chunk, int length, int bytesPerCell) {
+        ByteBuffer cells = chunks[chunk].duplicate();
+        cells.clear();
+        cells.limit((int) Math.min(CHUNK_CELLS, length - ((long) chunk << CHUNK_SHIFT)) * bytesPerCell);
+        return cells;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * Counts of the living agents (energy above 0) and of their energies in fixed-width buckets, kept up to date as the
+ * energies change, so neither the energy histogram nor the count of living agents needs a scan of the agents. The
+ * last bucket also holds all energies above the range.
+ * <p>
+ * Counts are not thread safe. Concurrent steppers keep their own instance with the changes they made and merge it
+ * into the main one with {@link #drainTo(EnergyBuckets)}, so counts of a single instance may be negative.
+ */
+public class EnergyBuckets {
+
+    private final int bucketWidth;
+    private final int[] buckets;
+    private int livingAgents = 0;
+
+    public EnergyBuckets(int bucketCount, int bucketWidth) {
+        this.bucketWidth = bucketWidth;
+        this.buckets = new int[bucketCount];
+    }
+
+    private int bucketOf(int energy) {
+        return Math.min(energy / bucketWidth, buckets.length - 1);
+    }
+
+    public void add(int energy) {
+        if (energy > 0) {
+            buckets[bucketOf(energy)]++;
+            livingAgents++;
+        }
+    }
+
+    public void remove(int energy) {
+        if (energy > 0) {
+            buckets[bucketOf(energy)]--;
+            livingAgents--;
+        }
+    }
+
+    public void change(int oldEnergy, int newEnergy) {
+        if (oldEnergy > 0 && newEnergy > 0) {
+            int oldBucket = bucketOf(oldEnergy);
+            int newBucket = bucketOf(newEnergy);
+            if (oldBucket != newBucket) {
+                buckets[oldBucket]--;
+                buckets[newBucket]++;
+            }
+            return;
+        }
+        remove(oldEnergy);
+        add(newEnergy);
+    }
+
+    /**
+     * Adds the counts to the other instance and resets these ones.
+     */
+    public void drainTo(EnergyBuckets other) {
+        for (int i = 0; i < buckets.length; i++) {
+            other.buckets[i] += buckets[i];
+        }
+        other.livingAgents += livingAgents;
+        clear();
+    }
+
+    public void clear() {
+        Arrays.fill(buckets, 0);
+        livingAgents = 0;
+    }
+
+    public int getBucketCount() {
+        return buckets.length;
+    }
+
+    public int getBucketWidth() {
+        return bucketWidth;
+    }
+
+    public int getCount(int bucket) {
+        return buckets[bucket];
+    }
+
+    /**
+     * @return the energy below which the given fraction of the living agents is, interpolated linearly inside the
+     * bucket, or the lower bound of the last bucket if it is there, 0 if there are no living agents
+     */
+    public float getQuantile(double fraction) {
+        double target = fraction * livingAgents;
+        int below = 0;
+        for (int bucket = 0; bucket < buckets.length - 1; bucket++) {
+            if (buckets[bucket] > 0 && below + buckets[bucket] >= target) {
+                return (float) ((bucket + (target - below) / buckets[bucket]) * bucketWidth);
+            }
+            below += buckets[bucket];
+        }
+        return livingAgents > 0 ? (buckets.length - 1) * bucketWidth : 0;
+    }
+
+    public int getLivingAgents() {
+        return livingAgents;
+    }
+}
@@ -0,0 +1,35 @@
+import uchicago.src.sim.analysis.plot.OpenGraph;
+
+/**
+ * Histogram window of the agent energies, drawn like OpenHistogram but from the counts that {@link EnergyBuckets}
+ * keeps up to date, so a redraw costs one pass over the buckets instead of a pass over all agents.
+ */
+public class EnergyHistogram extends OpenGraph {
+
+    private final EnergyBuckets energyBuckets;
+
+    public EnergyHistogram(String title, String legend, EnergyBuckets energyBuckets) {
+        super(title);
+        this.energyBuckets = energyBuckets;
+        setBars(0.5, 0.2);
+        setXRange(0, energyBuckets.getBucketCount() - 1);
+        plot.addLegend(0, legend);
+    }
+
+    public void record() {
+        // the buckets are always up to date
+    }
+
+    public void updateGraph() {
+        plot.clearPoints();
+        int width = energyBuckets.getBucketWidth();
+        int last = energyBuckets.getBucketCount() - 1;
+        for (int bucket = 0; bucket <= last; bucket++) {
+            String label = bucket == last ? (bucket * width) + "+"
+                    : (bucket * width) + " - " + ((bucket + 1) * width);
+            updateXTick(bucket, label, bucket);
+            plot.addPoint(0, bucket, energyBuckets.getCount(bucket), false);
+        }
+        plot.fillPlot();
+    }
+}
@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Grass amounts of the rabbits grass simulation. Every grass unit lands on a uniformly random cell and no cell gets
+ * more grass than the boundary. {@link DenseGrassField} keeps every cell up to date, {@link SparseGrassField} only
+ * the cells that were looked at.
+ */
+public abstract class GrassField {
+
+    // mean above which the binomial sampler splits the trials, so q^n does not underflow
+    private static final double MAX_INVERSION_MEAN = 30;
+
+    protected final int sizeX;
+    protected final int sizeY;
+    protected final int boundary;
+
+    protected GrassField(int sizeX, int sizeY, int boundary) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.boundary = boundary;
+    }
+
+    /**
+     * @param offHeap whether the cells of a dense field are kept off the heap
+     * @param sparse  whether the field is sparse, its cells then grow lazily with the given random generator
+     */
+    public static GrassField create(int sizeX, int sizeY, int boundary, boolean offHeap, boolean sparse,
+                                    Random random) {
+        return sparse ? new SparseGrassField(sizeX, sizeY, boundary, random)
+                : new DenseGrassField(sizeX, sizeY, boundary, offHeap);
+    }
+
+    /**
+     * Reads the cell without changing the field, so it can be called for drawing.
+     */
+    public abstract int getGrassAt(int x, int y);
+
+    /**
+     * Adds one unit of grass to the cell, never exceeding the boundary.
+     *
+     * @return the amount of grass actually added (0 or 1)
+     */
+    public abstract int addGrassAt(int x, int y);
+
+    /**
+     * Places the given number of grass units on uniformly random cells. A cell never gets more grass than the
+     * boundary.
+     */
+    public abstract void growGrass(int grass, Random random);
+
+    /**
+     * Removes all grass from the cell.
+     *
+     * @return the amount of grass that was on the cell
+     */
+    public abstract int removeGrassAt(int x, int y);
+
+    /**
+     * Removes all grass from the cell without updating the total. Used when cells are cleared concurrently, the
+     * caller sums up the removed amounts and passes them to {@link #subtractFromTotal(int)}.
+     *
+     * @param random the generator of the calling thread, for the grass a sparse field still has to grow on the cell
+     * @return the amount of grass that was on the cell
+     */
+    public abstract int clearGrassAt(int x, int y, Random random);
+
+    public abstract void subtractFromTotal(int grassAmount);
+
+    /**
+     * The total is kept as the cells change, not counted, because the exporter asks for it every tick. A sparse field
+     * returns the expected total.
+     */
+    public abstract int getTotalGrassAmount();
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * @return bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    abstract long getSnapshotSize();
+
+    abstract void writeTo(ByteBuffer buffer);
+
+    abstract void readFrom(ByteBuffer buffer);
+
+    /**
+     * Samples the binomial distribution by inversion, which takes time proportional to the mean, but stops at the
+     * limit, so min(X, limit) is sampled in time proportional to the limit.
+     */
+    static int binomial(long trials, double probability, int limit, Random random) {
+        if (limit <= 0) {
+            return 0;
+        }
+        if (trials * probability > MAX_INVERSION_MEAN) {
+            long half = trials / 2;
+            int first = binomial(half, probability, limit, random);
+            return first >= limit ? limit : first + binomial(trials - half, probability, limit - first, random);
+        }
+        double q = 1 - probability;
+        double s = probability / q;
+        double a = (trials + 1) * s;
+        double r = Math.pow(q, trials);
+        double u = random.nextDouble();
+        int x = 0;
+        while (u > r && x < trials && x < limit) {
+            u -= r;
+            x++;
+            r *= a / x - s;
+        }
+        return x;
+    }
+}
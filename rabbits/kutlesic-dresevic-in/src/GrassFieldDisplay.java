@@ -0,0 +1,85 @@
+import uchicago.src.collection.BaseMatrix;
+import uchicago.src.sim.space.Discrete2DSpace;
+
+import java.awt.Dimension;
+
+/**
+ * Read-only adapter that exposes a {@link GrassField} as a RePast {@link Discrete2DSpace}, so it can be drawn by
+ * Value2DDisplay. It is only created when the GUI is on; the simulation itself never goes through it.
+ */
+public class GrassFieldDisplay implements Discrete2DSpace {
+
+    private final GrassField grassField;
+    private final BaseMatrix matrix;
+
+    public GrassFieldDisplay(GrassField grassField) {
+        this.grassField = grassField;
+        this.matrix = new GrassMatrix();
+    }
+
+    public int getSizeX() {
+        return grassField.getSizeX();
+    }
+
+    public int getSizeY() {
+        return grassField.getSizeY();
+    }
+
+    public Dimension getSize() {
+        return new Dimension(grassField.getSizeX(), grassField.getSizeY());
+    }
+
+    public Object getObjectAt(int x, int y) {
+        // grass amounts are bounded by a small constant, so the Integer cache is hit
+        return grassField.getGrassAt(x, y);
+    }
+
+    public double getValueAt(int x, int y) {
+        return grassField.getGrassAt(x, y);
+    }
+
+    public void putObjectAt(int x, int y, Object object) {
+        throw new UnsupportedOperationException("Grass field display is read-only");
+    }
+
+    public void putValueAt(int x, int y, double value) {
+        throw new UnsupportedOperationException("Grass field display is read-only");
+    }
+
+    public BaseMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * Value2DDisplay reads the cells through the matrix of the space.
+     */
+    private class GrassMatrix implements BaseMatrix {
+
+        public Object get(int x, int y) {
+            return grassField.getGrassAt(x, y);
+        }
+
+        public void put(int x, int y, Object object) {
+            throw new UnsupportedOperationException("Grass field display is read-only");
+        }
+
+        public Object remove(int x, int y) {
+            throw new UnsupportedOperationException("Grass field display is read-only");
+        }
+
+        public int size() {
+            return grassField.getSizeX() * grassField.getSizeY();
+        }
+
+        public int getNumRows() {
+            return grassField.getSizeY();
+        }
+
+        public int getNumCols() {
+            return grassField.getSizeX();
+        }
+
+        public void trim() {
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Cell values in a plain int array on the heap, the default storage of the simulation space.
+ */
+public class HeapCellArray implements CellArray {
+
+    // bytes narrowed from the values at a time in putBytes and getBytes
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final int[] values;
+
+    public HeapCellArray(int length) {
+        values = new int[length];
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        values[index] = value;
+    }
+
+    public int length() {
+        return values.length;
+    }
+
+    public void putInts(ByteBuffer buffer, int length) {
+        RabbitsGrassSimulationCheckpoint.putInts(buffer, values, length);
+    }
+
+    public void getInts(ByteBuffer buffer, int length) {
+        RabbitsGrassSimulationCheckpoint.getInts(buffer, values, length);
+    }
+
+    public void putBytes(ByteBuffer buffer, int length) {
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, length)];
+        for (int start = 0; start < length; start += chunk.length) {
+            int count = Math.min(chunk.length, length - start);
+            for (int i = 0; i < count; i++) {
+                chunk[i] = (byte) values[start + i];
+            }
+            buffer.put(chunk, 0, count);
+        }
+    }
+
+    public void getBytes(ByteBuffer buffer, int length) {
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, length)];
+        for (int start = 0; start < length; start += chunk.length) {
+            int count = Math.min(chunk.length, length - start);
+            buffer.get(chunk, 0, count);
+            for (int i = 0; i < count; i++) {
+                values[start + i] = chunk[i];
+            }
+        }
+    }
+}
@@ -1,46 +1,46 @@
 import uchicago.src.sim.gui.Drawable;
 import uchicago.src.sim.gui.SimGraphics;
-import uchicago.src.sim.space.Object2DGrid;
 
-import java.util.Random;
 import java.awt.Color;
 
 /**
- * Class that implements the simulation agent for the rabbits grass simulation.
+ * Class that implements the simulation agent for the rabbits grass simulation. The agent is a lightweight view
+ * of one slot of the {@link AgentStore}, it only exists so the RePast display and probes can work with objects.
+ * Once the agent dies the view is detached and keeps the last values it had.
  */
 public class RabbitsGrassSimulationAgent implements Drawable {
 
-    private static int agentID = 0;
-    private static int UNABLE_MOVES_BOUNDARY = 10;
+    private AgentStore store;
+    private int slot;
 
-    //class fields
-    private int x = -1;
-    private int y = -1;
-    private int lifeTime = 0;
-    private int bornBabies = 0;
-    private int unableMoves = 0;
+    // values frozen when the agent is removed from the store
+    private int x;
+    private int y;
     private int energy;
-    private int birthFrequency = 0;
-    private final int id;
-    private final float birthGivingLoss;
+    private int lifeTime;
+    private int bornBabies;
+    private int birthFrequency;
+    private int id;
 
-
-    private RabbitsGrassSimulationSpace grassSpace;
-
-    public RabbitsGrassSimulationAgent(int minEnergy, int maxEnergy, float birthGivingLoss) {
-        energy = (int) ((Math.random() * (maxEnergy - minEnergy)) + minEnergy);
-        this.birthGivingLoss = birthGivingLoss;
-        id = ++agentID;
+    public RabbitsGrassSimulationAgent(AgentStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
     }
 
-    public RabbitsGrassSimulationAgent(int babyLifeSpan, float birthGivingLoss) {
-        energy = babyLifeSpan;
-        this.birthGivingLoss = birthGivingLoss;
-        id = ++agentID;
+    void setSlot(int slot) {
+        this.slot = slot;
     }
 
-    public static void resetAgentID() {
-        agentID = 0;
+    void detach() {
+        x = store.getX(slot);
+        y = store.getY(slot);
+        energy = store.getEnergy(slot);
+        lifeTime = store.getLifeTime(slot);
+        bornBabies = store.getBornBabies(slot);
+        birthFrequency = store.getBirthFrequency(slot);
+        id = store.getId(slot);
+        store = null;
+        slot = -1;
     }
 
     public void draw(SimGraphics arg0) {
@@ -48,90 +48,38 @@ public class RabbitsGrassSimulationAgent implements Drawable {
     }
 
     public int getX() {
-        return x;
+        return store == null ? x : store.getX(slot);
     }
 
     public int getY() {
-        return y;
-    }
-
-    public void setXY(int newX, int newY) {
-        x = newX;
-        y = newY;
+        return store == null ? y : store.getY(slot);
     }
 
     public int getEnergy() {
-        return energy;
-    }
-
-    public void step() {
-        int dX, dY;
-        //mapping -1 -> (-1,0), 0 -> (0,-1), 0 -> (0,1), 1 -> (1,0)
-        int[] generatingSeq = {-1, 0, 0, 1};
-        int randomNumber = new Random().nextInt(generatingSeq.length);
-        dX = generatingSeq[randomNumber];
-        if (dX == 0) {
-            dY = randomNumber == 1 ? -1 : 1;
-        } else {
-            dY = 0;
-        }
-
-        Object2DGrid grid = grassSpace.getCurrentAgentSpace();
-        int newX = (x + dX + grid.getSizeX()) % grid.getSizeX();
-        int newY = (y + dY + grid.getSizeY()) % grid.getSizeY();
-
-        energy--;
-        lifeTime++;
-
-        if (tryMove(newX, newY)) {
-            energy += grassSpace.removeGrassAt(x, y);
-            birthFrequency++;
-            unableMoves = 0;
-        } else if (unableMoves < UNABLE_MOVES_BOUNDARY) { // collision -> try again for UNABLE_MOVES_BOUNDARY
-            unableMoves++;
-            this.step();
-        }
-    }
-
-    public void reproduce() {
-        energy = (int) ((1 - birthGivingLoss) * energy);
-        birthFrequency = 0;
-        bornBabies++;
-    }
-
-    private boolean tryMove(int newX, int newY) {
-        return grassSpace.didMoveAgentAt(x, y, newX, newY);
-    }
-
-    public void setGrassSpace(RabbitsGrassSimulationSpace grassSpace) {
-        this.grassSpace = grassSpace;
+        return store == null ? energy : store.getEnergy(slot);
     }
 
     public void report() {
-        System.out.println("Agent " + id +
+        System.out.println("Agent " + getId() +
                 " is at (" +
-                x + ", " + y +
+                getX() + ", " + getY() +
                 ") and has " +
-                "energy: " + energy);
+                "energy: " + getEnergy());
     }
 
     public int getBirthFrequency() {
-        return birthFrequency;
+        return store == null ? birthFrequency : store.getBirthFrequency(slot);
     }
 
     public int getLifeTime() {
-        return lifeTime;
+        return store == null ? lifeTime : store.getLifeTime(slot);
     }
 
     public int getBornBabies() {
-        return bornBabies;
-    }
-
-    public static int getAgentID() {
-        return agentID;
+        return store == null ? bornBabies : store.getBornBabies(slot);
     }
 
     public int getId() {
-        return id;
+        return store == null ? id : store.getId(slot);
     }
 }
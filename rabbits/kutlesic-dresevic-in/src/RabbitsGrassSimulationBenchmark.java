@@ -0,0 +1,310 @@
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmarks of the rabbits grass simulation, a plain main class in the style of JMH, since the project has no
+ * build to host a JMH module. Every benchmark runs warmup iterations and then measured iterations of a fixed
+ * duration and reports the mean time per operation with its 99.9% confidence interval and the bytes allocated per
+ * operation. Every iteration starts from a new simulation with the same seed, so all versions of the model are
+ * measured on the same workload.
+ * <p>
+ * The benchmarks are tick (one {@link RabbitsGrassSimulationEngine#step()}), the phases of the tick moveAgents,
+ * reapDeadAgents and growGrass (timed one by one during ticks, per tick), didMoveAgentAt (a random agent moves to a
+ * free neighbouring cell) and spaceGrowGrass (growing the grass of one tick on an empty-ish space).
+ * <p>
+ * Usage: {@code RabbitsGrassSimulationBenchmark [--warmup=N] [--iterations=N] [--time=ms] [--grids=20,256,...]
+ * [--rabbits=0.01,...] [--growth=0.01,...] [--benchmarks=tick,phases,move,grow] Name=value ...}, where rabbits and
+ * growth are per cell of the grid and Name is one of the parameters of {@link RabbitsGrassSimulationModel#getInitParam()}.
+ */
+public class RabbitsGrassSimulationBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ITERATIONS = 5;
+    private static final long ITERATION_MILLIS = 500;
+    private static final int[] GRIDS = {20, 128, 1024, 4096};
+    private static final double[] RABBITS = {0.01, 0.1};
+    private static final double[] GROWTH = {0.01, 0.1};
+    private static final String[] BENCHMARKS = {"tick", "phases", "move", "grow"};
+    // z value of the 99.9% confidence interval, like JMH reports
+    private static final double Z = 3.29;
+    private static final long SEED = 1;
+    private static final int MOVES_PER_CHECK = 1024;
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Operations, time and allocated bytes of one benchmark in one iteration.
+     */
+    private static final class Result {
+        final String benchmark;
+        long operations;
+        long nanos;
+        long bytes;
+
+        Result(String benchmark) {
+            this.benchmark = benchmark;
+        }
+    }
+
+    private static final class Score {
+        final RunningStatistics nanosPerOperation = new RunningStatistics();
+        final RunningStatistics bytesPerOperation = new RunningStatistics();
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationNanos;
+    private final List<String> benchmarks;
+
+    public RabbitsGrassSimulationBenchmark(int warmupIterations, int iterations, long iterationMillis,
+                                           List<String> benchmarks) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+        this.benchmarks = benchmarks;
+    }
+
+    public static void main(String[] args) {
+        int warmupIterations = WARMUP_ITERATIONS;
+        int iterations = ITERATIONS;
+        long iterationMillis = ITERATION_MILLIS;
+        double[] grids = Arrays.stream(GRIDS).asDoubleStream().toArray();
+        double[] rabbits = RABBITS;
+        double[] growth = GROWTH;
+        List<String> benchmarks = Arrays.asList(BENCHMARKS);
+        Map<String, Double> values = new LinkedHashMap<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--warmup=")) {
+                warmupIterations = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--time=")) {
+                iterationMillis = Long.parseLong(arg.substring("--time=".length()));
+            } else if (arg.startsWith("--grids=")) {
+                grids = RabbitsGrassSimulationSweep.parseValues(arg.substring("--grids=".length()));
+            } else if (arg.startsWith("--rabbits=")) {
+                rabbits = RabbitsGrassSimulationSweep.parseValues(arg.substring("--rabbits=".length()));
+            } else if (arg.startsWith("--growth=")) {
+                growth = RabbitsGrassSimulationSweep.parseValues(arg.substring("--growth=".length()));
+            } else if (arg.startsWith("--benchmarks=")) {
+                benchmarks = Arrays.asList(arg.substring("--benchmarks=".length()).split(","));
+            } else {
+                String[] nameAndValue = arg.split("=", 2);
+                if (nameAndValue.length != 2) {
+                    throw new IllegalArgumentException("Expected Name=value, got " + arg);
+                }
+                values.put(nameAndValue[0], Double.parseDouble(nameAndValue[1]));
+            }
+        }
+
+        RabbitsGrassSimulationBenchmark benchmark =
+                new RabbitsGrassSimulationBenchmark(warmupIterations, iterations, iterationMillis, benchmarks);
+        System.out.println(String.format(Locale.ROOT, "%-16s %6s %9s %9s %16s %14s %12s",
+                "Benchmark", "Grid", "Rabbits", "Growth", "ns/op", "+-(99.9%)", "B/op"));
+        for (double grid : grids) {
+            for (double rabbitDensity : rabbits) {
+                for (double growthDensity : growth) {
+                    RabbitsGrassSimulationParameters parameters = new RabbitsGrassSimulationParameters();
+                    for (Map.Entry<String, Double> value : values.entrySet()) {
+                        parameters.setParameter(value.getKey(), value.getValue());
+                    }
+                    int gridSize = (int) grid;
+                    long cells = (long) gridSize * gridSize;
+                    parameters.setGridSize(gridSize);
+                    parameters.setNumInitRabbits((int) Math.max(1, Math.round(rabbitDensity * cells)));
+                    parameters.setGrassGrowthRate((int) Math.max(1, Math.round(growthDensity * cells)));
+                    parameters.setNumInitGrass(parameters.getGrassGrowthRate());
+                    parameters.checkParameters();
+                    benchmark.run(parameters);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the selected benchmarks on the parameters and prints their scores.
+     */
+    public void run(RabbitsGrassSimulationParameters parameters) {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (String benchmark : benchmarks) {
+            for (int iteration = 0; iteration < warmupIterations + iterations; iteration++) {
+                for (Result result : runIteration(benchmark, parameters)) {
+                    if (iteration >= warmupIterations && result.operations > 0) {
+                        Score score = scores.computeIfAbsent(result.benchmark, name -> new Score());
+                        score.nanosPerOperation.add((double) result.nanos / result.operations);
+                        score.bytesPerOperation.add((double) result.bytes / result.operations);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, Score> score : scores.entrySet()) {
+            RunningStatistics nanos = score.getValue().nanosPerOperation;
+            System.out.println(String.format(Locale.ROOT, "%-16s %6d %9d %9d %16.1f %14.1f %12.1f",
+                    score.getKey(), parameters.getGridSize(), parameters.getNumInitRabbits(),
+                    parameters.getGrassGrowthRate(), nanos.getMean(),
+                    nanos.getCount() > 1 ? nanos.getConfidenceHalfWidth(Z) : Double.NaN,
+                    score.getValue().bytesPerOperation.getMean()));
+        }
+    }
+
+    private List<Result> runIteration(String benchmark, RabbitsGrassSimulationParameters parameters) {
+        switch (benchmark) {
+            case "tick":
+                return Arrays.asList(tick(parameters));
+            case "phases":
+                return phases(parameters);
+            case "move":
+                return Arrays.asList(didMoveAgentAt(parameters));
+            case "grow":
+                return Arrays.asList(growGrass(parameters));
+            default:
+                throw new IllegalArgumentException("Unknown benchmark " + benchmark
+                        + ", expected one of " + Arrays.toString(BENCHMARKS));
+        }
+    }
+
+    /**
+     * Ticks until the iteration time is over or the agents die out. Allocations of all threads are counted, so the
+     * tiles stepped by the worker threads are included.
+     */
+    private Result tick(RabbitsGrassSimulationParameters parameters) {
+        RabbitsGrassSimulationEngine engine = new RabbitsGrassSimulationEngine(parameters, false, SEED);
+        Result result = new Result("tick");
+        long bytes = allocatedBytesOfAllThreads();
+        long start = System.nanoTime();
+        do {
+            engine.step();
+            result.operations++;
+            result.nanos = System.nanoTime() - start;
+        } while (result.nanos < iterationNanos && engine.getAgents().size() > 0);
+        result.bytes = allocatedBytesOfAllThreads() - bytes;
+        return result;
+    }
+
+    /**
+     * Ticks like {@link #tick(RabbitsGrassSimulationParameters)}, timing the phases one by one. Allocations are
+     * only counted on the benchmark thread.
+     */
+    private List<Result> phases(RabbitsGrassSimulationParameters parameters) {
+        RabbitsGrassSimulationEngine engine = new RabbitsGrassSimulationEngine(parameters, false, SEED);
+        Result move = new Result("moveAgents");
+        Result reap = new Result("reapDeadAgents");
+        Result grow = new Result("growGrass");
+        long thread = Thread.currentThread().getId();
+        long total = 0;
+        do {
+            long bytes = THREADS.getThreadAllocatedBytes(thread);
+            long time = System.nanoTime();
+            engine.moveAgents();
+            long moved = System.nanoTime();
+            long movedBytes = THREADS.getThreadAllocatedBytes(thread);
+            engine.reapDeadAgents();
+            long reaped = System.nanoTime();
+            long reapedBytes = THREADS.getThreadAllocatedBytes(thread);
+            engine.growGrass();
+            long grown = System.nanoTime();
+            long grownBytes = THREADS.getThreadAllocatedBytes(thread);
+            engine.finishTick();
+
+            move.nanos += moved - time;
+            move.bytes += movedBytes - bytes;
+            reap.nanos += reaped - moved;
+            reap.bytes += reapedBytes - movedBytes;
+            grow.nanos += grown - reaped;
+            grow.bytes += grownBytes - reapedBytes;
+            move.operations++;
+            reap.operations++;
+            grow.operations++;
+            total += grown - time;
+        } while (total < iterationNanos && engine.getAgents().size() > 0);
+        return Arrays.asList(move, reap, grow);
+    }
+
+    /**
+     * Moves random agents of the initial population to the first free neighbouring cell, the way the engine picks
+     * and applies a move.
+     */
+    private Result didMoveAgentAt(RabbitsGrassSimulationParameters parameters) {
+        int gridSize = parameters.getGridSize();
+        SplitMixRandom random = new SplitMixRandom(SEED);
+        RabbitsGrassSimulationSpace space = new RabbitsGrassSimulationSpace(gridSize, gridSize,
+                parameters.isOffHeapStorage(), parameters.isSparseGrass(), random);
+        AgentStore agents = new AgentStore(1, 1);
+        for (int i = 0; i < parameters.getNumInitRabbits(); i++) {
+            int slot = agents.reserve(1);
+            if (!space.didAddAgentToSpace(agents, slot)) {
+                break;
+            }
+            agents.commit();
+        }
+
+        Result result = new Result("didMoveAgentAt");
+        long bytes = allocatedBytesOfAllThreads();
+        long start = System.nanoTime();
+        do {
+            for (int i = 0; i < MOVES_PER_CHECK; i++) {
+                int slot = random.nextInt(agents.size());
+                int x = agents.getX(slot);
+                int y = agents.getY(slot);
+                int freeNeighbours = space.getFreeNeighbours(x, y);
+                if (freeNeighbours != 0) {
+                    int move = Integer.numberOfTrailingZeros(freeNeighbours);
+                    int newX = (x + RabbitsGrassSimulationSpace.MOVE_X[move] + gridSize) % gridSize;
+                    int newY = (y + RabbitsGrassSimulationSpace.MOVE_Y[move] + gridSize) % gridSize;
+                    space.didMoveAgentAt(x, y, newX, newY);
+                    agents.setXY(slot, newX, newY);
+                }
+            }
+            result.operations += MOVES_PER_CHECK;
+            result.nanos = System.nanoTime() - start;
+        } while (result.nanos < iterationNanos);
+        result.bytes = allocatedBytesOfAllThreads() - bytes;
+        return result;
+    }
+
+    /**
+     * Grows the grass of one tick per operation. Without agents the grass would only pile up at the boundary, so
+     * the space is replaced, outside of the measurement, before it gets half full.
+     */
+    private Result growGrass(RabbitsGrassSimulationParameters parameters) {
+        int gridSize = parameters.getGridSize();
+        int grass = parameters.getGrassGrowthRate();
+        long operationsPerSpace = Math.max(1, (long) gridSize * gridSize
+                * RabbitsGrassSimulationSpace.getGrassOnCellBoundary() / (2L * grass));
+        SplitMixRandom random = new SplitMixRandom(SEED);
+        long thread = Thread.currentThread().getId();
+
+        Result result = new Result("spaceGrowGrass");
+        while (result.nanos < iterationNanos) {
+            RabbitsGrassSimulationSpace space = new RabbitsGrassSimulationSpace(gridSize, gridSize,
+                    parameters.isOffHeapStorage(), parameters.isSparseGrass(), random);
+            long bytes = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (long i = 0; i < operationsPerSpace && System.nanoTime() - start < iterationNanos; i++) {
+                space.growGrass(grass);
+                result.operations++;
+            }
+            result.nanos += System.nanoTime() - start;
+            result.bytes += THREADS.getThreadAllocatedBytes(thread) - bytes;
+        }
+        return result;
+    }
+
+    private static long allocatedBytesOfAllThreads() {
+        long bytes = 0;
+        for (long allocated : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            // -1 for threads that ended in between
+            bytes += Math.max(0, allocated);
+        }
+        return bytes;
+    }
+}
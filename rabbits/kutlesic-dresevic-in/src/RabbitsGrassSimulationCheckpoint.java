@@ -0,0 +1,177 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Binary snapshots of a running {@link RabbitsGrassSimulationEngine}. A snapshot holds the parameters, the tick and
+ * the running statistics, the agent table with the agent id counter, the grass grid (one byte per cell) and the
+ * state of the random generators. Occupancy, the free cells and the energy buckets are rebuilt from the agents.
+ * <p>
+ * A snapshot is written to a temporary file and then moved over the previous one, so a crash while writing never
+ * destroys the last good snapshot. The pages are not forced to disk: they survive the JVM, which is what the
+ * checkpoints protect against. A snapshot is one buffer, so it can be at most MAX_SNAPSHOT_SIZE bytes long.
+ * <p>
+ * The engine writes its checkpoints with a {@link Writer}: the schedule thread only copies the state into a buffer
+ * that is kept between checkpoints, in bulk, and a background thread writes the file, so the schedule does not wait
+ * for the file system.
+ */
+public final class RabbitsGrassSimulationCheckpoint {
+
+    private static final int MAGIC = 0x52414242;
+    private static final int VERSION = 4;
+    // limit of a single MappedByteBuffer
+    private static final long MAX_SNAPSHOT_SIZE = Integer.MAX_VALUE;
+
+    private RabbitsGrassSimulationCheckpoint() {
+    }
+
+    /**
+     * Writes the snapshot and waits until it is in the file.
+     */
+    public static void write(RabbitsGrassSimulationEngine engine, Path file) throws IOException {
+        try (Writer writer = new Writer(file)) {
+            writer.write(engine);
+        }
+    }
+
+    /**
+     * Writes the checkpoints of one engine to one file in the background.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path file;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rabbits-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the snapshot being written, reused by the next one
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+        private Future<?> pending;
+
+        public Writer(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Copies the state of the engine and starts writing it. It first waits for the previous snapshot, which is
+         * normally written long before the next checkpoint.
+         *
+         * @throws IOException if the previous snapshot could not be written or this one is too large
+         */
+        public void write(RabbitsGrassSimulationEngine engine) throws IOException {
+            finish();
+            long size = 2 * Integer.BYTES + RabbitsGrassSimulationParameters.SNAPSHOT_SIZE + engine.getSnapshotSize();
+            if (size > MAX_SNAPSHOT_SIZE) {
+                throw new IOException("Snapshot of " + size + " bytes exceeds the " + MAX_SNAPSHOT_SIZE
+                        + " bytes a checkpoint can hold");
+            }
+            if (buffer.capacity() < size) {
+                // room for the snapshot to grow a little, so the buffer is not replaced at every checkpoint
+                buffer = ByteBuffer.allocateDirect((int) Math.min(size + size / 8, MAX_SNAPSHOT_SIZE));
+            }
+            buffer.clear();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            engine.getParameters().writeTo(buffer);
+            engine.writeTo(buffer);
+            buffer.flip();
+            ByteBuffer snapshot = buffer;
+            pending = executor.submit(() -> {
+                writeFile(snapshot);
+                return null;
+            });
+        }
+
+        private void writeFile(ByteBuffer snapshot) throws IOException {
+            Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (snapshot.hasRemaining()) {
+                    channel.write(snapshot);
+                }
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Waits until the last snapshot is in the file.
+         *
+         * @throws IOException if it could not be written
+         */
+        public void finish() throws IOException {
+            if (pending == null) {
+                return;
+            }
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing " + file, e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException("Can't write " + file, e.getCause());
+            } finally {
+                pending = null;
+            }
+        }
+
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Restores the engine from the snapshot, it continues exactly where the snapshotted one was.
+     */
+    public static RabbitsGrassSimulationEngine read(Path file, boolean verbose) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_SNAPSHOT_SIZE) {
+                throw new IOException(file + " has " + channel.size() + " bytes, more than the "
+                        + MAX_SNAPSHOT_SIZE + " bytes a checkpoint can map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a rabbits grass simulation checkpoint");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+            }
+            RabbitsGrassSimulationParameters parameters = RabbitsGrassSimulationParameters.readFrom(buffer);
+            return new RabbitsGrassSimulationEngine(parameters, verbose, buffer);
+        }
+    }
+
+    public static RabbitsGrassSimulationEngine read(String file, boolean verbose) throws IOException {
+        return read(Paths.get(file), verbose);
+    }
+
+    static void putInts(ByteBuffer buffer, int[] values, int length) {
+        buffer.asIntBuffer().put(values, 0, length);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+    }
+
+    static void getInts(ByteBuffer buffer, int[] values, int length) {
+        buffer.asIntBuffer().get(values, 0, length);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+    }
+}
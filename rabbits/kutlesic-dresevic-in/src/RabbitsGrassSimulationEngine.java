@@ -0,0 +1,607 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Class that implements the simulation logic of the rabbits grass simulation without any RePast display or
+ * schedule. The RePast model drives it tick by tick and renders it, while batch runs can step it directly.
+ */
+public class RabbitsGrassSimulationEngine {
+
+    private static final int UNABLE_MOVES_BOUNDARY = 10;
+    private static final int ENERGY_BUCKETS = 50;
+    // log of the probability that a random move collides, indexed by the number of free neighbouring cells
+    private static final double[] LOG_COLLISION_PROBABILITY = {
+            0, Math.log(3 / 4.0), Math.log(2 / 4.0), Math.log(1 / 4.0), Double.NEGATIVE_INFINITY};
+    // random streams derived from the seed, every tile gets a new stream in every tick
+    private static final long ENGINE_STREAM = 0;
+    private static final long SPACE_STREAM = 1;
+    private static final long TILE_STREAMS = 2;
+
+    private final RabbitsGrassSimulationParameters parameters;
+    private final AgentStore agents;
+    private final RabbitsGrassSimulationSpace grassSpace;
+    private final long seed;
+    private final SplitMixRandom random;
+    // prints the agents and the deaths, like the RePast model always did
+    private final boolean verbose;
+    private int[] order = new int[0];
+    private int tick = 0;
+
+    // parallel stepping, only used when the tile size is positive
+    private final int tileSize;
+    private final int tilesX;
+    private final int tileCount;
+    // tiles of the same colour are never next to each other, the colours are stepped one after the other
+    private final int colourCount;
+    private final int[] tileColours;
+    private final int[] colours;
+    private int[] tileStart;
+    private int[] tileAgents = new int[0];
+    // tile of every agent at the start of the tick
+    private int[] agentTiles = new int[0];
+    private int[] eatenGrass;
+    private int[] tileCollisions;
+    private int[] tileFailedMoves;
+    private EnergyBuckets[] tileEnergyBuckets;
+    private final SplitMixRandom[] tileRandoms;
+
+    // gets a row after every tick if set
+    private RabbitsGrassSimulationExporter exporter;
+    // gets the counts and phase times of every tick if set
+    private RabbitsGrassSimulationMetrics metrics;
+
+    // a checkpoint is written every checkpointInterval ticks, never if it is 0
+    private int checkpointInterval = 0;
+    private Path checkpointFile;
+    private RabbitsGrassSimulationCheckpoint.Writer checkpointWriter;
+
+    //statistics
+    private float averageLifeTime = 0;
+    private float averageBornBabes = 0;
+    private int deadAgents = 0;
+    // counts of the last tick
+    private int births = 0;
+    private int deaths = 0;
+    private int collisions = 0;
+    private int failedMoves = 0;
+    private int failedPlacements = 0;
+
+    public RabbitsGrassSimulationEngine(RabbitsGrassSimulationParameters parameters) {
+        this(parameters, true);
+    }
+
+    public RabbitsGrassSimulationEngine(RabbitsGrassSimulationParameters parameters, boolean verbose) {
+        this(parameters, verbose, parameters.getSeed());
+    }
+
+    /**
+     * @param seed the seed of all random draws of the run, 0 picks a random seed
+     */
+    public RabbitsGrassSimulationEngine(RabbitsGrassSimulationParameters parameters, boolean verbose, long seed) {
+        this(parameters, verbose, seed != 0 ? seed : ThreadLocalRandom.current().nextLong(), null);
+        grassSpace.growGrass(parameters.getNumInitGrass());
+
+        for (int i = 0; i < parameters.getNumInitRabbits(); i++) {
+            didAddNewAgentToList(false);
+        }
+
+        if (verbose) {
+            for (int slot = 0; slot < agents.size(); slot++) {
+                agents.getAgent(slot).report();
+            }
+        }
+    }
+
+    /**
+     * Restores the engine from a snapshot written by {@link #writeTo(ByteBuffer)}, see
+     * {@link RabbitsGrassSimulationCheckpoint#read(Path, boolean)}.
+     */
+    RabbitsGrassSimulationEngine(RabbitsGrassSimulationParameters parameters, boolean verbose, ByteBuffer snapshot) {
+        this(parameters, verbose, snapshot.getLong(),
+                RabbitsGrassSimulationSpace.readFrom(snapshot, parameters.getGridSize(), parameters.getGridSize(),
+                        parameters.isOffHeapStorage(), parameters.isSparseGrass()));
+        random.setSeed(snapshot.getLong());
+        tick = snapshot.getInt();
+        deadAgents = snapshot.getInt();
+        averageLifeTime = snapshot.getFloat();
+        averageBornBabes = snapshot.getFloat();
+        agents.readFrom(snapshot);
+        grassSpace.restoreAgents(agents);
+    }
+
+    /**
+     * @param grassSpace the restored space, or null for a new empty space
+     */
+    private RabbitsGrassSimulationEngine(RabbitsGrassSimulationParameters parameters, boolean verbose, long seed,
+                                         RabbitsGrassSimulationSpace grassSpace) {
+        this.parameters = parameters;
+        this.verbose = verbose;
+        this.seed = seed;
+        this.random = SplitMixRandom.stream(seed, ENGINE_STREAM);
+        this.grassSpace = grassSpace != null ? grassSpace
+                : new RabbitsGrassSimulationSpace(parameters.getGridSize(), parameters.getGridSize(),
+                parameters.isOffHeapStorage(), parameters.isSparseGrass(), SplitMixRandom.stream(seed, SPACE_STREAM));
+        // the buckets cover twice the highest energy a rabbit usually gets
+        int highEnergy = Math.max(Math.max(parameters.getAgentMaxEnergy(), parameters.getBirthThreshold()),
+                parameters.getBabyLifeSpan());
+        this.agents = new AgentStore(ENERGY_BUCKETS, Math.max(1, (2 * highEnergy + ENERGY_BUCKETS - 1) / ENERGY_BUCKETS));
+
+        int gridSize = parameters.getGridSize();
+        // a tile is at least 2 cells wide, so the cells that two tiles of the same colour touch never overlap, and
+        // the last tile in a row or column also takes the cells left over
+        tileSize = parameters.getTileSize() > 0 ? Math.min(Math.max(parameters.getTileSize(), 2), gridSize) : 0;
+        tilesX = tileSize > 0 ? Math.max(gridSize / tileSize, 1) : 1;
+        tileCount = tilesX * tilesX;
+        // checkerboard colours, with a third column and row colour for the last tile if the tiles wrap around
+        // with an odd count
+        int coloursX = tilesX == 1 ? 1 : tilesX % 2 == 0 ? 2 : 3;
+        colourCount = coloursX * coloursX;
+        tileColours = new int[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tileColours[tile] = colourOf(tile % tilesX) + coloursX * colourOf(tile / tilesX);
+        }
+        colours = new int[colourCount];
+        tileStart = new int[tileCount + 1];
+        eatenGrass = new int[tileCount];
+        tileCollisions = new int[tileCount];
+        tileFailedMoves = new int[tileCount];
+        tileEnergyBuckets = new EnergyBuckets[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            EnergyBuckets energyBuckets = agents.getEnergyBuckets();
+            tileEnergyBuckets[tile] = new EnergyBuckets(energyBuckets.getBucketCount(), energyBuckets.getBucketWidth());
+        }
+        tileRandoms = new SplitMixRandom[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tileRandoms[tile] = new SplitMixRandom(0);
+        }
+    }
+
+    /**
+     * Writes a checkpoint to the file after every interval ticks, 0 turns the checkpoints off.
+     */
+    public void enableCheckpoints(int interval, Path file) {
+        finishCheckpoints();
+        this.checkpointInterval = interval;
+        this.checkpointFile = file;
+        this.checkpointWriter = interval > 0 ? new RabbitsGrassSimulationCheckpoint.Writer(file) : null;
+    }
+
+    /**
+     * Waits until the last checkpoint is written, the checkpoints are written in the background.
+     */
+    public void finishCheckpoints() {
+        if (checkpointWriter == null) {
+            return;
+        }
+        try {
+            checkpointWriter.close();
+        } catch (IOException e) {
+            System.err.println("Can't write checkpoint to " + checkpointFile + ": " + e);
+        }
+        checkpointWriter = null;
+        checkpointInterval = 0;
+    }
+
+    /**
+     * Records every tick with the exporter, which also takes the place of the printed deaths of a verbose engine.
+     */
+    public void setExporter(RabbitsGrassSimulationExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    /**
+     * Adds the counts and the phase times of every tick to the metrics, which can be shared by several engines.
+     */
+    public void setMetrics(RabbitsGrassSimulationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * One tick of the simulation: every agent moves and possibly gives birth, dead agents are removed and the grass
+     * grows. Babies are appended after the agents that are stepped, so they move for the first time in the next tick.
+     */
+    public void step() {
+        if (metrics == null) {
+            moveAgents();
+            reapDeadAgents();
+            growGrass();
+            finishTick();
+            return;
+        }
+
+        long start = System.nanoTime();
+        moveAgents();
+        long moved = System.nanoTime();
+        reapDeadAgents();
+        long reaped = System.nanoTime();
+        growGrass();
+        long grown = System.nanoTime();
+        finishTick();
+        long finished = System.nanoTime();
+        metrics.recordTick(moved - start, reaped - moved, grown - reaped, finished - grown,
+                births, deaths, collisions, failedMoves, failedPlacements);
+    }
+
+    /*
+     * The phases of a tick are package-private, so the benchmark can time them one by one.
+     */
+
+    /**
+     * Every agent moves and possibly gives birth.
+     */
+    void moveAgents() {
+        int steppedAgents = agents.size();
+        births = 0;
+        failedPlacements = 0;
+        shuffleOrder(steppedAgents);
+        if (tileSize > 0) {
+            stepTiles(steppedAgents);
+        } else {
+            stepSequentially(steppedAgents);
+        }
+        collisions = Arrays.stream(tileCollisions).sum();
+        failedMoves = Arrays.stream(tileFailedMoves).sum();
+    }
+
+    void growGrass() {
+        grassSpace.growGrass(parameters.getGrassGrowthRate());
+    }
+
+    /**
+     * Ends the tick and records it with the exporter and in the checkpoint.
+     */
+    void finishTick() {
+        tick++;
+
+        if (exporter != null) {
+            exporter.record(this);
+        }
+
+        if (checkpointWriter != null && tick % checkpointInterval == 0) {
+            writeCheckpoint();
+        }
+    }
+
+    private void writeCheckpoint() {
+        try {
+            checkpointWriter.write(this);
+        } catch (IOException e) {
+            System.err.println("Can't write checkpoint to " + checkpointFile + ": " + e);
+        }
+    }
+
+    /**
+     * @return bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    long getSnapshotSize() {
+        return 2 * Long.BYTES + grassSpace.getSnapshotSize() + 4 * Integer.BYTES + agents.getSnapshotSize();
+    }
+
+    /**
+     * Writes the state between two ticks. The streams of the tiles are derived from the seed and the tick, so a
+     * restored run continues with exactly the same ticks as without the snapshot.
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(seed);
+        grassSpace.writeTo(buffer);
+        buffer.putLong(random.getState());
+        buffer.putInt(tick);
+        buffer.putInt(deadAgents);
+        buffer.putFloat(averageLifeTime);
+        buffer.putFloat(averageBornBabes);
+        agents.writeTo(buffer);
+    }
+
+    private void stepSequentially(int steppedAgents) {
+        eatenGrass[0] = 0;
+        tileCollisions[0] = 0;
+        tileFailedMoves[0] = 0;
+        for (int i = 0; i < steppedAgents; i++) {
+            int slot = order[i];
+            stepAgent(slot, random, 0, agents.getEnergyBuckets());
+            giveBirth(slot);
+        }
+        grassSpace.getGrassField().subtractFromTotal(eatenGrass[0]);
+    }
+
+    /**
+     * Parallel stepping in colour phases. The tiles are coloured like a checkerboard, so two tiles of the same colour
+     * are at least one tile apart, and an agent only reads and changes its own cell and its neighbours. All tiles of
+     * one colour are therefore stepped concurrently, each agent of a tile moving in the shuffled order of the tick
+     * like in the sequential mode, whether it is inside the tile or on its edge. After each phase, the agents of the
+     * phase give birth in the shuffled order, because a baby can land anywhere in the grid.
+     * <p>
+     * The colours are stepped in a new random order every tick, so every agent is as likely to move before as after
+     * a neighbour in another tile, as in the sequential mode. The only remaining difference is that a baby is placed
+     * at the end of the phase of its parent instead of right after the parent moved. A baby lands next to a given
+     * agent with a probability in the order of 1 / free cells, so this does not change the statistics measurably,
+     * see {@link RabbitsGrassSimulationEnsemble}.
+     * <p>
+     * Every tile draws from its own stream of the seed for the tick and touches only its own cells and their
+     * neighbours, so the result depends on the seed and the tile size, but not on the number of threads or the order
+     * the tiles of a colour run in.
+     */
+    private void stepTiles(int steppedAgents) {
+        if (tileAgents.length < steppedAgents) {
+            tileAgents = new int[order.length];
+            agentTiles = new int[order.length];
+        }
+
+        // counting sort of the shuffled agents by tile, so each tile keeps the shuffled order
+        Arrays.fill(tileStart, 0);
+        for (int i = 0; i < steppedAgents; i++) {
+            int slot = order[i];
+            agentTiles[slot] = tileOf(slot);
+            tileStart[agentTiles[slot] + 1]++;
+        }
+        for (int tile = 0; tile < tileCount; tile++) {
+            tileStart[tile + 1] += tileStart[tile];
+        }
+        int[] next = Arrays.copyOf(tileStart, tileCount);
+        for (int i = 0; i < steppedAgents; i++) {
+            int slot = order[i];
+            tileAgents[next[agentTiles[slot]]++] = slot;
+        }
+
+        Arrays.fill(eatenGrass, 0);
+        Arrays.fill(tileCollisions, 0);
+        Arrays.fill(tileFailedMoves, 0);
+        for (int colour = 0; colour < colourCount; colour++) {
+            colours[colour] = colour;
+        }
+        for (int i = colourCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = colours[i];
+            colours[i] = colours[j];
+            colours[j] = temp;
+        }
+
+        for (int colour : colours) {
+            IntStream.range(0, tileCount).parallel().filter(tile -> tileColours[tile] == colour).forEach(tile -> {
+                SplitMixRandom tileRandom = tileRandoms[tile];
+                tileRandom.setSeed(SplitMixRandom.seedOf(seed, TILE_STREAMS + (long) tick * tileCount + tile));
+                for (int i = tileStart[tile]; i < tileStart[tile + 1]; i++) {
+                    stepAgent(tileAgents[i], tileRandom, tile, tileEnergyBuckets[tile]);
+                }
+            });
+
+            for (EnergyBuckets energyBuckets : tileEnergyBuckets) {
+                energyBuckets.drainTo(agents.getEnergyBuckets());
+            }
+            for (int i = 0; i < steppedAgents; i++) {
+                int slot = order[i];
+                if (tileColours[agentTiles[slot]] == colour) {
+                    giveBirth(slot);
+                }
+            }
+        }
+
+        eatenGrass[0] += Arrays.stream(eatenGrass, 1, tileCount).sum();
+        grassSpace.getGrassField().subtractFromTotal(eatenGrass[0]);
+    }
+
+    private int tileOf(int slot) {
+        int tileX = Math.min(agents.getX(slot) / tileSize, tilesX - 1);
+        int tileY = Math.min(agents.getY(slot) / tileSize, tilesX - 1);
+        return tileX + tileY * tilesX;
+    }
+
+    /**
+     * @return colour of the tiles in the column or row, the last one of an odd count that wraps around to the first
+     *         gets a colour of its own
+     */
+    private int colourOf(int tileX) {
+        return tilesX % 2 == 1 && tilesX > 1 && tileX == tilesX - 1 ? 2 : tileX % 2;
+    }
+
+    private void giveBirth(int slot) {
+        if (agents.getEnergy(slot) > parameters.getBirthThreshold()
+                && agents.getBirthFrequency(slot) > parameters.getBirthFrequency()
+                //adding baby as an agent
+                && didAddNewAgentToList(true)) {
+            agents.reproduce(slot, parameters.getBirthGivingLoss());
+            births++;
+        }
+    }
+
+    /**
+     * Steps the simulation until all agents are dead or maxTicks ticks are done.
+     *
+     * @param maxTicks
+     * @return number of ticks done
+     */
+    public int run(int maxTicks) {
+        int startTick = tick;
+        while (tick - startTick < maxTicks && agents.size() > 0) {
+            step();
+        }
+        return tick - startTick;
+    }
+
+    private void shuffleOrder(int size) {
+        if (order.length < size) {
+            order = new int[Math.max(size, order.length * 2)];
+        }
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = order[i];
+            order[i] = order[j];
+            order[j] = temp;
+        }
+    }
+
+    /**
+     * The agent moves to a random free neighbouring cell and eats the grass there. A random move collides with the
+     * occupied neighbours and the agent then tries again, at most UNABLE_MOVES_BOUNDARY times in a row, paying energy
+     * for every try. Instead of trying moves one by one, the number of collisions is drawn from the geometric
+     * distribution given by the free neighbours and the target is drawn uniformly among them, which gives the same
+     * distribution of outcomes without any retries. The eaten grass, the collisions and a failed move are added to
+     * the counts of the tile and the energy changes are recorded in the given buckets.
+     */
+    private void stepAgent(int slot, Random random, int tile, EnergyBuckets energyBuckets) {
+        int sizeX = grassSpace.getSizeX();
+        int sizeY = grassSpace.getSizeY();
+        int x = agents.getX(slot);
+        int y = agents.getY(slot);
+
+        int freeNeighbours = grassSpace.getFreeNeighbours(x, y);
+        int freeCount = Integer.bitCount(freeNeighbours);
+        int tries = UNABLE_MOVES_BOUNDARY - agents.getUnableMoves(slot) + 1;
+        int collisions = freeCount == 0 ? tries
+                : (int) Math.min(tries, Math.log(1 - random.nextDouble()) / LOG_COLLISION_PROBABILITY[freeCount]);
+
+        if (collisions >= tries) {
+            tileCollisions[tile] += tries;
+            tileFailedMoves[tile]++;
+            agents.addEnergy(slot, -tries, energyBuckets);
+            agents.addLifeTime(slot, tries);
+            agents.setUnableMoves(slot, UNABLE_MOVES_BOUNDARY);
+            return;
+        }
+
+        tileCollisions[tile] += collisions;
+        agents.addEnergy(slot, -(collisions + 1), energyBuckets);
+        agents.addLifeTime(slot, collisions + 1);
+
+        // pick the chosen set bit of the free neighbours
+        int move = 0;
+        for (int chosen = random.nextInt(freeCount); ; move++) {
+            if ((freeNeighbours & (1 << move)) != 0 && chosen-- == 0) {
+                break;
+            }
+        }
+        int newX = (x + RabbitsGrassSimulationSpace.MOVE_X[move] + sizeX) % sizeX;
+        int newY = (y + RabbitsGrassSimulationSpace.MOVE_Y[move] + sizeY) % sizeY;
+
+        grassSpace.didMoveAgentAt(x, y, newX, newY);
+        agents.setXY(slot, newX, newY);
+        int grassAmount = grassSpace.getGrassField().clearGrassAt(newX, newY, random);
+        eatenGrass[tile] += grassAmount;
+        agents.addEnergy(slot, grassAmount, energyBuckets);
+        agents.incrementBirthFrequency(slot);
+        agents.setUnableMoves(slot, 0);
+    }
+
+    private boolean didAddNewAgentToList(boolean baby) {
+        int energy;
+        if (baby) {
+            energy = parameters.getBabyLifeSpan();
+        } else {
+            int minEnergy = parameters.getAgentMinEnergy();
+            energy = (int) ((random.nextDouble() * (parameters.getAgentMaxEnergy() - minEnergy)) + minEnergy);
+        }
+        int slot = agents.reserve(energy);
+        if (!grassSpace.didAddAgentToSpace(agents, slot)) {
+            failedPlacements++;
+            if (verbose) {
+                System.err.println("Can't add new agent with energy " + energy);
+            }
+            return false;
+        }
+        agents.commit();
+        return true;
+    }
+
+    /**
+     * Removes the agents without energy and adds them to the statistics.
+     */
+    void reapDeadAgents() {
+        int count = 0;
+        int slot = 0;
+        while (slot < agents.size()) {
+            if (agents.getEnergy(slot) >= 1) {
+                slot++;
+                continue;
+            }
+            if (verbose && exporter == null) {
+                System.out.println("Agent " + agents.getId(slot) + " lived for " + agents.getLifeTime(slot) + " steps and gave birth to " + agents.getBornBabies(slot) + " babies.");
+            }
+            deadAgents++;
+            averageLifeTime += (agents.getLifeTime(slot) - averageLifeTime) / deadAgents;
+            averageBornBabes += (agents.getBornBabies(slot) - averageBornBabes) / deadAgents;
+            count++;
+
+            grassSpace.removeAgentAt(agents.getX(slot), agents.getY(slot));
+            // the last agent takes the freed slot, the same slot is checked again
+            if (agents.remove(slot) >= 0) {
+                grassSpace.setAgentAt(agents.getX(slot), agents.getY(slot), slot);
+            }
+        }
+        deaths = count;
+    }
+
+    /**
+     * @return the number of agents with positive energy, which is kept up to date by the agent store
+     */
+    public int countLivingAgents() {
+        int livingAgents = agents.getLivingAgents();
+        if (verbose) {
+            System.out.println("Number of living agents is: " + livingAgents);
+        }
+        return livingAgents;
+    }
+
+    public RabbitsGrassSimulationParameters getParameters() {
+        return parameters;
+    }
+
+    public AgentStore getAgents() {
+        return agents;
+    }
+
+    public RabbitsGrassSimulationSpace getGrassSpace() {
+        return grassSpace;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    public float getAverageLifeTime() {
+        return averageLifeTime;
+    }
+
+    public float getAverageBornBabes() {
+        return averageBornBabes;
+    }
+
+    public int getDeadAgents() {
+        return deadAgents;
+    }
+
+    public int getBirths() {
+        return births;
+    }
+
+    public int getDeaths() {
+        return deaths;
+    }
+
+    public int getCollisions() {
+        return collisions;
+    }
+
+    public int getFailedMoves() {
+        return failedMoves;
+    }
+
+    public int getFailedPlacements() {
+        return failedPlacements;
+    }
+
+    public int getPopulationSize() {
+        return agents.getAgentID();
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Ensemble of replicates of one configuration of the rabbits grass simulation. Replicates run concurrently as
+ * headless engines and the running mean and variance of the average lifetime, the babies per rabbit and the
+ * population size are updated as they finish. No more replicates are started once the confidence intervals of
+ * all three means are narrower than the target width, relative to the mean. The intervals use the Student t
+ * quantile for the replicates done at the confidence level of the normal quantile Z, because the ensemble may stop
+ * after a few replicates. The quantile is approximated, accurately from 4 replicates on, so at least 4 are run.
+ * <p>
+ * Usage: {@code RabbitsGrassSimulationEnsemble [--ticks=N] [--threads=N] [--width=W] [--z=Z] [--min=N] [--max=N]
+ * Name=value ...}, where Name is one of the parameters of {@link RabbitsGrassSimulationModel#getInitParam()}, Z
+ * is the normal quantile of the confidence level and --min is at least 4.
+ * <p>
+ * With {@code --compare-tile-size=T} it instead runs --max replicates of the sequential stepping and --max of the
+ * tiles of size T and checks that both give the same mean and variance of the three statistics: the Welch t of the
+ * means and the log of the variance ratio over its standard error must both be within MAX_DIFFERENCE. It exits
+ * with 1 if they are not.
+ */
+public class RabbitsGrassSimulationEnsemble {
+
+    private static final int MAX_TICKS = 1000;
+    // relative width of the confidence interval, e.g. 0.05 means mean +- 2.5%
+    private static final double TARGET_WIDTH = 0.05;
+    // 95% confidence interval
+    private static final double Z = 1.96;
+    private static final int MIN_REPLICATES = 5;
+    private static final int MAX_REPLICATES = 1000;
+    // largest standardized difference of a mean or a variance for which two ensembles count as the same
+    private static final double MAX_DIFFERENCE = 3;
+
+    private final RabbitsGrassSimulationParameters parameters;
+    private final int maxTicks;
+    private final int threads;
+    private final double targetWidth;
+    private final double z;
+    private final int minReplicates;
+    private final int maxReplicates;
+
+    private final RunningStatistics lifeTime = new RunningStatistics();
+    private final RunningStatistics bornBabes = new RunningStatistics();
+    private final RunningStatistics population = new RunningStatistics();
+
+    public RabbitsGrassSimulationEnsemble(RabbitsGrassSimulationParameters parameters, int maxTicks, int threads,
+                                          double targetWidth, double z, int minReplicates, int maxReplicates) {
+        this.parameters = parameters;
+        this.maxTicks = maxTicks;
+        this.threads = threads;
+        this.targetWidth = targetWidth;
+        this.z = z;
+        this.minReplicates = Math.max(minReplicates, 4);
+        this.maxReplicates = Math.max(maxReplicates, this.minReplicates);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, Double> values = new LinkedHashMap<>();
+        int maxTicks = MAX_TICKS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double targetWidth = TARGET_WIDTH;
+        double z = Z;
+        int minReplicates = MIN_REPLICATES;
+        int maxReplicates = MAX_REPLICATES;
+        int compareTileSize = 0;
+
+        for (String arg : args) {
+            if (arg.startsWith("--ticks=")) {
+                maxTicks = Integer.parseInt(arg.substring("--ticks=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--width=")) {
+                targetWidth = Double.parseDouble(arg.substring("--width=".length()));
+            } else if (arg.startsWith("--z=")) {
+                z = Double.parseDouble(arg.substring("--z=".length()));
+            } else if (arg.startsWith("--min=")) {
+                minReplicates = Integer.parseInt(arg.substring("--min=".length()));
+            } else if (arg.startsWith("--max=")) {
+                maxReplicates = Integer.parseInt(arg.substring("--max=".length()));
+            } else if (arg.startsWith("--compare-tile-size=")) {
+                compareTileSize = Integer.parseInt(arg.substring("--compare-tile-size=".length()));
+            } else {
+                String[] nameAndValue = arg.split("=", 2);
+                if (nameAndValue.length != 2) {
+                    throw new IllegalArgumentException("Expected Name=value, got " + arg);
+                }
+                values.put(nameAndValue[0], Double.parseDouble(nameAndValue[1]));
+            }
+        }
+
+        RabbitsGrassSimulationParameters parameters = new RabbitsGrassSimulationParameters();
+        for (Map.Entry<String, Double> value : values.entrySet()) {
+            parameters.setParameter(value.getKey(), value.getValue());
+        }
+        parameters.checkParameters();
+
+        if (compareTileSize > 0) {
+            parameters.setTileSize(0);
+            RabbitsGrassSimulationEnsemble sequential = new RabbitsGrassSimulationEnsemble(
+                    parameters, maxTicks, threads, targetWidth, z, maxReplicates, maxReplicates);
+            sequential.run();
+            RabbitsGrassSimulationParameters tiledParameters = new RabbitsGrassSimulationParameters();
+            for (Map.Entry<String, Double> value : values.entrySet()) {
+                tiledParameters.setParameter(value.getKey(), value.getValue());
+            }
+            tiledParameters.setTileSize(compareTileSize);
+            tiledParameters.checkParameters();
+            RabbitsGrassSimulationEnsemble tiled = new RabbitsGrassSimulationEnsemble(
+                    tiledParameters, maxTicks, threads, targetWidth, z, maxReplicates, maxReplicates);
+            tiled.run();
+            if (!compare(sequential, tiled)) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        RabbitsGrassSimulationEnsemble ensemble = new RabbitsGrassSimulationEnsemble(
+                parameters, maxTicks, threads, targetWidth, z, minReplicates, maxReplicates);
+        ensemble.run();
+        ensemble.report();
+    }
+
+    /**
+     * Keeps up to threads replicates running and stops starting new ones once the target width is reached.
+     *
+     * @return the number of replicates done
+     */
+    public long run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<RabbitsGrassSimulationEngine> completionService = new ExecutorCompletionService<>(executor);
+        int started = 0;
+        int running = 0;
+        try {
+            while (started < Math.min(threads, maxReplicates)) {
+                int replicate = started;
+                completionService.submit(() -> runReplicate(replicate));
+                started++;
+                running++;
+            }
+            while (running > 0) {
+                try {
+                    RabbitsGrassSimulationEngine engine = completionService.take().get();
+                    lifeTime.add(engine.getAverageLifeTime());
+                    bornBabes.add(engine.getAverageBornBabes());
+                    population.add(engine.getPopulationSize());
+                } catch (ExecutionException e) {
+                    System.err.println("Replicate of the ensemble failed: " + e.getCause());
+                }
+                running--;
+
+                if (started < maxReplicates && !isPrecise()) {
+                    int replicate = started;
+                    completionService.submit(() -> runReplicate(replicate));
+                    started++;
+                    running++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return lifeTime.getCount();
+    }
+
+    /**
+     * A given seed gives every replicate its own stream of it, so every replicate can be replayed from the seed.
+     */
+    private RabbitsGrassSimulationEngine runReplicate(int replicate) {
+        long seed = parameters.getSeed() == 0 ? 0 : SplitMixRandom.seedOf(parameters.getSeed(), replicate);
+        RabbitsGrassSimulationEngine engine = new RabbitsGrassSimulationEngine(parameters, false, seed);
+        engine.run(maxTicks);
+        return engine;
+    }
+
+    /**
+     * @return whether all confidence intervals are narrower than the target width
+     */
+    public boolean isPrecise() {
+        return lifeTime.getCount() >= minReplicates
+                && isPrecise(lifeTime) && isPrecise(bornBabes) && isPrecise(population);
+    }
+
+    private boolean isPrecise(RunningStatistics statistics) {
+        return 2 * statistics.getStudentHalfWidth(z) <= targetWidth * Math.abs(statistics.getMean());
+    }
+
+    public void report() {
+        System.out.println(
+                "\n\nReplicates: " + lifeTime.getCount() + (isPrecise() ? "" : " (target width not reached)")
+                        + "\nAverage lifetime: " + format(lifeTime)
+                        + "\nAverage babes born per rabbit: " + format(bornBabes)
+                        + "\nPopulation size: " + format(population)
+        );
+    }
+
+    /**
+     * Prints the differences of the means and the variances of the two ensembles.
+     *
+     * @return whether all of them are within MAX_DIFFERENCE
+     */
+    public static boolean compare(RabbitsGrassSimulationEnsemble first, RabbitsGrassSimulationEnsemble second) {
+        System.out.println("\n\nReplicates: " + first.lifeTime.getCount() + " and " + second.lifeTime.getCount());
+        return compare("Average lifetime", first.lifeTime, second.lifeTime)
+                & compare("Average babes born per rabbit", first.bornBabes, second.bornBabes)
+                & compare("Population size", first.population, second.population);
+    }
+
+    private static boolean compare(String name, RunningStatistics first, RunningStatistics second) {
+        double meanError = Math.sqrt(first.getVariance() / first.getCount()
+                + second.getVariance() / second.getCount());
+        double welchT = meanError > 0 ? (first.getMean() - second.getMean()) / meanError : 0;
+        // the log of a sample variance has about the standard error sqrt(2 / (n - 1))
+        double varianceError = Math.sqrt(2.0 / (first.getCount() - 1) + 2.0 / (second.getCount() - 1));
+        double varianceRatio = first.getVariance() / second.getVariance();
+        double varianceDifference = Math.log(varianceRatio) / varianceError;
+        boolean same = Math.abs(welchT) <= MAX_DIFFERENCE && Math.abs(varianceDifference) <= MAX_DIFFERENCE;
+        System.out.println(String.format(Locale.ROOT,
+                "%s: %.4f and %.4f, Welch t %.2f, variance ratio %.3f (%.2f standard errors)%s",
+                name, first.getMean(), second.getMean(), welchT, varianceRatio, varianceDifference,
+                same ? "" : " DIFFERENT"));
+        return same;
+    }
+
+    private String format(RunningStatistics statistics) {
+        return String.format(Locale.ROOT, "%.4f +- %.4f", statistics.getMean(), statistics.getStudentHalfWidth(z));
+    }
+
+    public RunningStatistics getLifeTime() {
+        return lifeTime;
+    }
+
+    public RunningStatistics getBornBabes() {
+        return bornBabes;
+    }
+
+    public RunningStatistics getPopulation() {
+        return population;
+    }
+}
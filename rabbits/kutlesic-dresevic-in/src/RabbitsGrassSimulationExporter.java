@@ -0,0 +1,215 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Streams one row per tick of the rabbits grass simulation into a compact binary file: the tick, the population,
+ * the total grass, the births and deaths of the tick and quantiles of the agent energies. The simulation thread only
+ * fills in-memory blocks of rows, a background thread writes the full blocks, so a tick never waits for the disk.
+ * Every value of a row is a running count of the engine, the grass field or the energy buckets, so recording a row
+ * never scans the grid or the agents.
+ * <p>
+ * The grass column is exact for a dense field. A sparse field only knows the grass of the cells that were looked at,
+ * so its total is an estimate (see {@link SparseGrassField#getTotalGrassAmount()}) and the column is named
+ * expectedGrass instead, which readers of the file can tell from the header.
+ * <p>
+ * The file is little-endian and columnar: a header (magic, version, column count, then the name and type of every
+ * column, I for int and F for float) followed by blocks, each with its row count and then every column of the block
+ * as consecutive values. {@link #main(String[])} prints a file as CSV.
+ */
+public class RabbitsGrassSimulationExporter implements Closeable {
+
+    private static final int MAGIC = 0x52425453;
+    private static final int VERSION = 1;
+    private static final int ROWS_PER_BLOCK = 1024;
+    private static final double[] QUANTILES = {0.1, 0.25, 0.5, 0.75, 0.9};
+    private static final String[] COLUMNS = {"tick", "population", "grass", "births", "deaths",
+            "energyP10", "energyP25", "energyP50", "energyP75", "energyP90"};
+    private static final int GRASS_COLUMN = 2;
+    private static final String EXPECTED_GRASS_COLUMN = "expectedGrass";
+    private static final int INT_COLUMNS = 5;
+
+    private static final class Block {
+        // float columns hold the raw bits of the floats
+        final int[][] columns = new int[COLUMNS.length][ROWS_PER_BLOCK];
+        int rows = 0;
+    }
+
+    // tells the writer that no more blocks come
+    private static final Block END = new Block();
+
+    private final Path file;
+    // whether the grass column holds the expected total of a sparse field
+    private final boolean expectedGrass;
+    private final FileChannel channel;
+    private final BlockingQueue<Block> fullBlocks = new LinkedBlockingQueue<>();
+    private final Queue<Block> freeBlocks = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    private volatile IOException failure;
+    private Block block = new Block();
+
+    /**
+     * @param sparseGrass whether the grass field is a {@link SparseGrassField}, whose total is an estimate
+     */
+    public RabbitsGrassSimulationExporter(Path file, boolean sparseGrass) throws IOException {
+        this.file = file;
+        this.expectedGrass = sparseGrass;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        writeHeader();
+        writer = new Thread(this::writeBlocks, "rabbits-exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: RabbitsGrassSimulationExporter <export file>");
+            return;
+        }
+        printCsv(Paths.get(args[0]));
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(1 << 10).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(COLUMNS.length);
+        for (int column = 0; column < COLUMNS.length; column++) {
+            String columnName = column == GRASS_COLUMN && expectedGrass ? EXPECTED_GRASS_COLUMN : COLUMNS[column];
+            byte[] name = columnName.getBytes(StandardCharsets.UTF_8);
+            header.putInt(name.length);
+            header.put(name);
+            header.put((byte) (column < INT_COLUMNS ? 'I' : 'F'));
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Adds the row of the tick the engine just did. Never blocks: a full block is handed to the writer and the next
+     * one is a recycled block, or a new one if the writer is behind.
+     */
+    public void record(RabbitsGrassSimulationEngine engine) {
+        int row = block.rows++;
+        int[][] columns = block.columns;
+        columns[0][row] = engine.getTick();
+        columns[1][row] = engine.getAgents().size();
+        columns[GRASS_COLUMN][row] = engine.getGrassSpace().getTotalGrassAmount();
+        columns[3][row] = engine.getBirths();
+        columns[4][row] = engine.getDeaths();
+        EnergyBuckets energyBuckets = engine.getAgents().getEnergyBuckets();
+        for (int i = 0; i < QUANTILES.length; i++) {
+            columns[INT_COLUMNS + i][row] = Float.floatToRawIntBits(energyBuckets.getQuantile(QUANTILES[i]));
+        }
+
+        if (block.rows == ROWS_PER_BLOCK) {
+            fullBlocks.add(block);
+            Block free = freeBlocks.poll();
+            block = free != null ? free : new Block();
+        }
+    }
+
+    private void writeBlocks() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Integer.BYTES * (1 + COLUMNS.length * ROWS_PER_BLOCK))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (Block full = fullBlocks.take(); full != END; full = fullBlocks.take()) {
+                if (failure == null) {
+                    try {
+                        write(full, buffer);
+                    } catch (IOException e) {
+                        failure = e;
+                        System.err.println("Can't export to " + file + ", no more rows are written: " + e);
+                    }
+                }
+                full.rows = 0;
+                freeBlocks.add(full);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Block full, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.putInt(full.rows);
+        for (int[] column : full.columns) {
+            buffer.asIntBuffer().put(column, 0, full.rows);
+            buffer.position(buffer.position() + full.rows * Integer.BYTES);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the rows recorded so far and waits for the writer to finish.
+     */
+    public void close() throws IOException {
+        if (block.rows > 0) {
+            fullBlocks.add(block);
+        }
+        fullBlocks.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public static void printCsv(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a rabbits grass simulation export");
+            }
+            int columnCount = buffer.getInt();
+            boolean[] floats = new boolean[columnCount];
+            StringBuilder line = new StringBuilder();
+            for (int column = 0; column < columnCount; column++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                floats[column] = buffer.get() == 'F';
+                line.append(column == 0 ? "" : ",").append(new String(name, StandardCharsets.UTF_8));
+            }
+            System.out.println(line);
+
+            while (buffer.hasRemaining()) {
+                int rows = buffer.getInt();
+                int start = buffer.position();
+                for (int row = 0; row < rows; row++) {
+                    line.setLength(0);
+                    for (int column = 0; column < columnCount; column++) {
+                        int value = buffer.getInt(start + (column * rows + row) * Integer.BYTES);
+                        line.append(column == 0 ? "" : ",").append(floats[column]
+                                ? String.format(Locale.ROOT, "%.2f", Float.intBitsToFloat(value))
+                                : Integer.toString(value));
+                    }
+                    System.out.println(line);
+                }
+                buffer.position(start + columnCount * rows * Integer.BYTES);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and tick phase timers of the rabbits grass simulation. An engine adds the counts of a whole tick at once,
+ * so the hot paths only increment plain ints, and the counters are striped, so the engines of a sweep can share one
+ * registry without contention. The metrics are exposed over JMX and can be printed periodically.
+ */
+public class RabbitsGrassSimulationMetrics implements RabbitsGrassSimulationMetricsMBean, Closeable {
+
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder births = new LongAdder();
+    private final LongAdder deaths = new LongAdder();
+    // random moves that hit an occupied neighbouring cell
+    private final LongAdder collisions = new LongAdder();
+    // agents that did not move in a tick because all their tries collided
+    private final LongAdder failedMoves = new LongAdder();
+    // new agents or babies that found no free cell
+    private final LongAdder failedPlacements = new LongAdder();
+
+    private final LongAdder tickNanos = new LongAdder();
+    private final LongAdder moveAgentsNanos = new LongAdder();
+    private final LongAdder reapDeadAgentsNanos = new LongAdder();
+    private final LongAdder growGrassNanos = new LongAdder();
+    private final LongAdder finishTickNanos = new LongAdder();
+    private final LongAccumulator maxTickNanos = new LongAccumulator(Math::max, 0);
+
+    private ObjectName objectName;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Adds one tick of an engine.
+     */
+    public void recordTick(long moveAgents, long reapDeadAgents, long growGrass, long finishTick,
+                           int tickBirths, int tickDeaths, int tickCollisions, int tickFailedMoves,
+                           int tickFailedPlacements) {
+        long tick = moveAgents + reapDeadAgents + growGrass + finishTick;
+        ticks.increment();
+        tickNanos.add(tick);
+        moveAgentsNanos.add(moveAgents);
+        reapDeadAgentsNanos.add(reapDeadAgents);
+        growGrassNanos.add(growGrass);
+        finishTickNanos.add(finishTick);
+        maxTickNanos.accumulate(tick);
+        births.add(tickBirths);
+        deaths.add(tickDeaths);
+        collisions.add(tickCollisions);
+        failedMoves.add(tickFailedMoves);
+        failedPlacements.add(tickFailedPlacements);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as rabbits:type=Metrics,name=name.
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName newName = new ObjectName("rabbits:type=Metrics,name=" + ObjectName.quote(name));
+        if (server.isRegistered(newName)) {
+            server.unregisterMBean(newName);
+        }
+        server.registerMBean(this, newName);
+        objectName = newName;
+    }
+
+    /**
+     * Prints a snapshot to the stream every period seconds from a background thread.
+     */
+    public synchronized void startReporting(long periodSeconds, PrintStream out) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rabbits-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> out.println(getSnapshot()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Stops the reporting and unregisters the metrics from JMX.
+     */
+    public void close() {
+        stopReporting();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.err.println("Can't unregister metrics " + objectName + ": " + e);
+            }
+            objectName = null;
+        }
+    }
+
+    public long getTicks() {
+        return ticks.sum();
+    }
+
+    public long getBirths() {
+        return births.sum();
+    }
+
+    public long getDeaths() {
+        return deaths.sum();
+    }
+
+    public long getCollisions() {
+        return collisions.sum();
+    }
+
+    public long getFailedMoves() {
+        return failedMoves.sum();
+    }
+
+    public long getFailedPlacements() {
+        return failedPlacements.sum();
+    }
+
+    private double perTick(LongAdder nanos) {
+        long count = ticks.sum();
+        return count > 0 ? (double) nanos.sum() / count : 0;
+    }
+
+    public double getMeanTickNanos() {
+        return perTick(tickNanos);
+    }
+
+    public double getMeanMoveAgentsNanos() {
+        return perTick(moveAgentsNanos);
+    }
+
+    public double getMeanReapDeadAgentsNanos() {
+        return perTick(reapDeadAgentsNanos);
+    }
+
+    public double getMeanGrowGrassNanos() {
+        return perTick(growGrassNanos);
+    }
+
+    public double getMeanFinishTickNanos() {
+        return perTick(finishTickNanos);
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos.get();
+    }
+
+    /**
+     * @return all metrics in one line, times in microseconds per tick
+     */
+    public String getSnapshot() {
+        return String.format(Locale.ROOT,
+                "ticks=%d births=%d deaths=%d collisions=%d failedMoves=%d failedPlacements=%d "
+                        + "tickUs=%.1f maxTickUs=%.1f moveAgentsUs=%.1f reapDeadAgentsUs=%.1f growGrassUs=%.1f "
+                        + "finishTickUs=%.1f",
+                getTicks(), getBirths(), getDeaths(), getCollisions(), getFailedMoves(), getFailedPlacements(),
+                getMeanTickNanos() / 1000, getMaxTickNanos() / 1000.0, getMeanMoveAgentsNanos() / 1000,
+                getMeanReapDeadAgentsNanos() / 1000, getMeanGrowGrassNanos() / 1000, getMeanFinishTickNanos() / 1000);
+    }
+
+    /**
+     * Resets all metrics, ticks recorded at the same time may be partially lost.
+     */
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{ticks, births, deaths, collisions, failedMoves, failedPlacements,
+                tickNanos, moveAgentsNanos, reapDeadAgentsNanos, growGrassNanos, finishTickNanos}) {
+            adder.reset();
+        }
+        maxTickNanos.reset();
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * JMX view of {@link RabbitsGrassSimulationMetrics}. Times are in nanoseconds.
+ */
+public interface RabbitsGrassSimulationMetricsMBean {
+
+    long getTicks();
+
+    long getBirths();
+
+    long getDeaths();
+
+    long getCollisions();
+
+    long getFailedMoves();
+
+    long getFailedPlacements();
+
+    double getMeanTickNanos();
+
+    double getMeanMoveAgentsNanos();
+
+    double getMeanReapDeadAgentsNanos();
+
+    double getMeanGrowGrassNanos();
+
+    double getMeanFinishTickNanos();
+
+    long getMaxTickNanos();
+
+    String getSnapshot();
+
+    void reset();
+}
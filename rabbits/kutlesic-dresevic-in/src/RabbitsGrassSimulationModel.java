@@ -7,11 +7,11 @@ import uchicago.src.sim.gui.ColorMap;
 import uchicago.src.sim.gui.DisplaySurface;
 import uchicago.src.sim.gui.Object2DDisplay;
 import uchicago.src.sim.gui.Value2DDisplay;
-import uchicago.src.sim.util.SimUtilities;
 
+import javax.management.JMException;
 import java.awt.*;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * Class that implements the simulation model for the rabbits grass
@@ -36,42 +36,35 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
     }
 
     // Default Values
-    private static final int GRID_SIZE = 20;
-    private static final int NUM_INIT_RABBITS = 20;
-    private static final int NUM_INIT_GRASS = 10;
-    private static final int GRASS_GROWTH_RATE = 30;
-    private static final int AGENT_MIN_ENERGY = 30;
-    private static final int AGENT_MAX_ENERGY = 50;
-    private static final int BABY_LIFE_SPAN = (AGENT_MAX_ENERGY + AGENT_MIN_ENERGY) / 2;
-    private static final int BIRTH_FREQUENCY = 20;
-    private static final float BIRTH_GIVING_LOSS = 0.3f;
-
-    private int gridSize = GRID_SIZE;
-    private int numInitRabbits = NUM_INIT_RABBITS;
-    private int numInitGrass = NUM_INIT_GRASS;
-    private int grassGrowthRate = GRASS_GROWTH_RATE;
-    private int agentMinEnergy = AGENT_MIN_ENERGY;
-    private int agentMaxEnergy = AGENT_MAX_ENERGY;
-    private int birthThreshold = AGENT_MAX_ENERGY + 1;
-    private int babyLifeSpan = BABY_LIFE_SPAN;
-    private int birthFrequency = BIRTH_FREQUENCY;
-    private float birthGivingLoss = BIRTH_GIVING_LOSS;
+    private static final int RENDER_INTERVAL = 1;
+    private static final int CHECKPOINT_INTERVAL = 0;
+    private static final String CHECKPOINT_FILE = "rabbits.checkpoint";
+
+    private RabbitsGrassSimulationParameters parameters = new RabbitsGrassSimulationParameters();
+    private int renderInterval = RENDER_INTERVAL;
+    // 0 writes no checkpoints
+    private int checkpointInterval = CHECKPOINT_INTERVAL;
+    private String checkpointFile = CHECKPOINT_FILE;
+    // empty starts a new simulation, otherwise the simulation continues from this checkpoint
+    private String restoreFile = "";
+    // empty exports nothing, otherwise a row of every tick is streamed to this file
+    private String exportFile = "";
+    // the metrics are always on JMX, they are also printed every metricsInterval seconds if it is positive
+    private int metricsInterval = 0;
 
     //model
     private Schedule schedule;
-    private List<RabbitsGrassSimulationAgent> agentList;
-    private RabbitsGrassSimulationSpace grassSpace;
+    private RabbitsGrassSimulationEngine engine;
+    private RabbitsGrassSimulationExporter exporter;
+    private RabbitsGrassSimulationMetrics metrics;
     private DisplaySurface displaySurf;
 
     //statistics
-    private float averageLifeTime = 0;
-    private float averageBornBabes = 0;
-    private int deadAgents = 0;
     private static long startTime;
 
     private OpenSequenceGraph grassGraph;
     private OpenSequenceGraph rabbitsGraph;
-    private OpenHistogram agentEnergyDistribution;
+    private EnergyHistogram agentEnergyDistribution;
 
     class GrassInSpace implements DataSource, Sequence {
 
@@ -80,7 +73,7 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
         }
 
         public double getSValue() {
-            return grassSpace.getTotalGrassAmount();
+            return engine.getGrassSpace().getTotalGrassAmount();
         }
     }
 
@@ -91,48 +84,54 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
         }
 
         public double getSValue() {
-            return agentList.size();
-        }
-    }
-
-    class AgentEnergy implements BinDataSource {
-        public double getBinValue(Object o) {
-            RabbitsGrassSimulationAgent agent = (RabbitsGrassSimulationAgent) o;
-            return agent.getEnergy();
+            return engine.getAgents().size();
         }
     }
 
     public void setup() {
-        grassSpace = null;
-        agentList = new CopyOnWriteArrayList<>();
+        closeExporter();
+        if (engine != null) {
+            engine.finishCheckpoints();
+        }
+        if (metrics != null) {
+            metrics.close();
+            metrics = null;
+        }
+        engine = null;
         schedule = new Schedule(1);
 
         if (displaySurf != null) {
             displaySurf.dispose();
+            displaySurf = null;
         }
-        displaySurf = new DisplaySurface(this, "Rabbit Grass Model Window 1");
-        registerDisplaySurface("Rabbit Grass Model Window 1", displaySurf);
-
         if (grassGraph != null) {
             grassGraph.dispose();
+            grassGraph = null;
         }
-        grassGraph = new OpenSequenceGraph("Amount of Grass In Space", this);
-        grassGraph.setYRange(0, 100);
-        registerMediaProducer("Plot", grassGraph);
-
         if (rabbitsGraph != null) {
             rabbitsGraph.dispose();
+            rabbitsGraph = null;
         }
-        rabbitsGraph = new OpenSequenceGraph("Amount of Rabbits In Space", this);
-        rabbitsGraph.setYRange(0, 50);
-        registerMediaProducer("Plot", rabbitsGraph);
-
         if (agentEnergyDistribution != null) {
             agentEnergyDistribution.dispose();
+            agentEnergyDistribution = null;
         }
-        agentEnergyDistribution = new OpenHistogram("Agent Energy", 50, 0);
 
-        RabbitsGrassSimulationAgent.resetAgentID();
+        // in batch mode nothing is ever shown, so no display objects are created at all
+        if (isHeadless()) {
+            return;
+        }
+
+        displaySurf = new DisplaySurface(this, "Rabbit Grass Model Window 1");
+        registerDisplaySurface("Rabbit Grass Model Window 1", displaySurf);
+
+        grassGraph = new OpenSequenceGraph("Amount of Grass In Space", this);
+        grassGraph.setYRange(0, 100);
+        registerMediaProducer("Plot", grassGraph);
+
+        rabbitsGraph = new OpenSequenceGraph("Amount of Rabbits In Space", this);
+        rabbitsGraph.setYRange(0, 50);
+        registerMediaProducer("Plot", rabbitsGraph);
     }
 
     public void begin() {
@@ -140,52 +139,85 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
 
         buildModel();
         buildSchedule();
-        buildDisplay();
 
-        displaySurf.display();
-        grassGraph.display();
-        rabbitsGraph.display();
-        agentEnergyDistribution.display();
+        if (!isHeadless()) {
+            buildDisplaySchedule();
+            buildDisplay();
+
+            displaySurf.display();
+            grassGraph.display();
+            rabbitsGraph.display();
+            agentEnergyDistribution.display();
+        }
     }
 
-    private void buildModel() {
-        grassSpace = new RabbitsGrassSimulationSpace(gridSize, gridSize);
-        grassSpace.growGrass(numInitGrass);
+    private boolean isHeadless() {
+        return getController() != null && getController().isBatch();
+    }
 
-        for (int i = 0; i < numInitRabbits; i++) {
-            didAddNewAgentToList(false);
+    private void buildModel() {
+        if (!restoreFile.isEmpty()) {
+            try {
+                engine = RabbitsGrassSimulationCheckpoint.read(restoreFile, true);
+                // the parameters of the checkpoint replace the ones set by the user
+                parameters = engine.getParameters();
+            } catch (IOException e) {
+                System.err.println("Can't restore checkpoint " + restoreFile + ", starting a new simulation: " + e);
+            }
+        }
+        if (engine == null) {
+            engine = new RabbitsGrassSimulationEngine(parameters);
+        }
+        if (checkpointInterval > 0) {
+            engine.enableCheckpoints(checkpointInterval, Paths.get(checkpointFile));
+        }
+        metrics = new RabbitsGrassSimulationMetrics();
+        engine.setMetrics(metrics);
+        try {
+            metrics.register(getName());
+        } catch (JMException e) {
+            System.err.println("Can't register metrics over JMX: " + e);
+        }
+        if (metricsInterval > 0) {
+            metrics.startReporting(metricsInterval, System.out);
+        }
+        if (!exportFile.isEmpty()) {
+            try {
+                exporter = new RabbitsGrassSimulationExporter(Paths.get(exportFile), parameters.isSparseGrass());
+                engine.setExporter(exporter);
+            } catch (IOException e) {
+                System.err.println("Can't export to " + exportFile + ": " + e);
+            }
         }
+    }
 
-        for (RabbitsGrassSimulationAgent agent : agentList) {
-            agent.report();
+    private void closeExporter() {
+        if (exporter == null) {
+            return;
         }
+        try {
+            exporter.close();
+        } catch (IOException e) {
+            System.err.println("Can't finish export to " + exportFile + ": " + e);
+        }
+        exporter = null;
     }
 
     private void buildSchedule() {
         class SimulationStep extends BasicAction {
             public void execute() {
-                SimUtilities.shuffle(agentList);
-                for (RabbitsGrassSimulationAgent agent : agentList) {
-                    agent.step();
-
-                    if (agent.getEnergy() > birthThreshold && agent.getBirthFrequency() > birthFrequency
-                            //adding baby as an agent
-                            && didAddNewAgentToList(true)) {
-                        agent.reproduce();
-                    }
-                }
+                engine.step();
 
-                int toBeDeadAgents = reapDeadAgents();
-
-                displaySurf.updateDisplay();
-                grassSpace.growGrass(grassGrowthRate);
+                if (displaySurf != null && engine.getTick() % renderInterval == 0) {
+                    displaySurf.updateDisplay();
+                }
             }
         }
         schedule.scheduleActionBeginning(100, new SimulationStep());
 
         class CountLiving extends BasicAction {
             public void execute() {
-                int liveAgents = countLivingAgents();
+                int liveAgents = engine.countLivingAgents();
                 if (liveAgents == 0) {
                     RabbitsGrassSimulationModel.this.stop();
                 }
@@ -197,16 +229,22 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
         class CalculateStatistics extends BasicAction {
             public void execute() {
                 System.out.println(
-                        "\n\nAverage lifetime: " + averageLifeTime
-                                + "\nAverage babes born per rabbit: " + averageBornBabes
-                                + "\nPopulation size: " + RabbitsGrassSimulationAgent.getAgentID()
+                        "\n\nAverage lifetime: " + engine.getAverageLifeTime()
+                                + "\nAverage babes born per rabbit: " + engine.getAverageBornBabes()
+                                + "\nPopulation size: " + engine.getPopulationSize()
+                                + "\nSeed: " + engine.getSeed()
                                 + "\nSimulation duration: " + (System.nanoTime() - startTime) / 1_000_000_000.0 + " seconds"
                 );
+                closeExporter();
+                engine.finishCheckpoints();
+                System.out.println(metrics.getSnapshot());
 
             }
         }
         schedule.scheduleActionAtEnd(new CalculateStatistics());
+    }
 
+    private void buildDisplaySchedule() {
         class UpdateGrassAndRabbitsInSpace extends BasicAction {
             public void execute() {
                 grassGraph.step();
@@ -217,7 +255,7 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
 
         class UpdateAgentEnergy extends BasicAction {
             public void execute() {
-                if (agentList.size() > 0) {
+                if (engine.getAgents().size() > 0) {
                     agentEnergyDistribution.step();
                 }
             }
@@ -232,9 +270,10 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
         }
         mapGrass.mapColor(0, Color.white);
 
-        Value2DDisplay displayGrass = new Value2DDisplay(grassSpace.getCurrentGrassSpace(), mapGrass);
-        Object2DDisplay displayAgents = new Object2DDisplay(grassSpace.getCurrentAgentSpace());
-        displayAgents.setObjectList(agentList);
+        RabbitsGrassSimulationSpace grassSpace = engine.getGrassSpace();
+        Value2DDisplay displayGrass = new Value2DDisplay(new GrassFieldDisplay(grassSpace.getGrassField()), mapGrass);
+        Object2DDisplay displayAgents = new Object2DDisplay(new AgentSpaceDisplay(grassSpace, engine.getAgents()));
+        displayAgents.setObjectList(engine.getAgents().asList());
 
         displaySurf.addDisplayableProbeable(displayGrass, "Grass");
         displaySurf.addDisplayableProbeable(displayAgents, "Agents");
@@ -242,58 +281,16 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
         grassGraph.addSequence("Grass In Space", new GrassInSpace());
         rabbitsGraph.addSequence("Rabbits In Space", new RabbitsInSpace());
 
-        agentEnergyDistribution.createHistogramItem("Agent Energy", agentList, new AgentEnergy());
-    }
-
-    private boolean didAddNewAgentToList(boolean baby) {
-        RabbitsGrassSimulationAgent a;
-        if (baby) {
-            a = new RabbitsGrassSimulationAgent(babyLifeSpan, birthGivingLoss);
-        } else {
-            a = new RabbitsGrassSimulationAgent(agentMinEnergy, agentMaxEnergy, birthGivingLoss);
-        }
-        if (!grassSpace.didAddAgentToSpace(a)) {
-            System.err.println("Can't add new agent: " + a);
-            return false;
-        }
-        agentList.add(a);
-        return true;
-    }
-
-    private int reapDeadAgents() {
-        int count = 0;
-        for (int i = 0; i < agentList.size(); i++) {
-            RabbitsGrassSimulationAgent agent = agentList.get(i);
-            if (agent.getEnergy() < 1) {
-                grassSpace.removeAgentAt(agent.getX(), agent.getY());
-                agentList.remove(agent);
-                System.out.println("Agent " + agent.getId() + " lived for " + agent.getLifeTime() + " steps and gave birth to " + agent.getBornBabies() + " babies.");
-                deadAgents++;
-                averageLifeTime += (agent.getLifeTime() - averageLifeTime) / deadAgents;
-                averageBornBabes += (agent.getBornBabies() - averageBornBabes) / deadAgents;
-                count++;
-            }
-        }
-        return count;
-    }
-
-    private int countLivingAgents() {
-        int livingAgents = 0;
-        for (RabbitsGrassSimulationAgent agent : agentList) {
-            if (agent.getEnergy() > 0) {
-                livingAgents++;
-            }
-        }
-
-        System.out.println("Number of living agents is: " + livingAgents);
-        return livingAgents;
+        agentEnergyDistribution = new EnergyHistogram("Agent Energy", "Agent Energy",
+                engine.getAgents().getEnergyBuckets());
     }
 
     public String[] getInitParam() {
         // Parameters to be set by users via the Repast UI slider bar
         // Do "not" modify the parameters names provided in the skeleton code, you can add more if you want
         return new String[]{"AgentMinEnergy", "AgentMaxEnergy", "GridSize", "NumInitRabbits", "NumInitGrass", "GrassGrowthRate", "BirthThreshold",
-                "BabyLifeSpan", "BirthFrequency", "BirthGivingLoss"};
+                "BabyLifeSpan", "BirthFrequency", "BirthGivingLoss", "TileSize", "OffHeapStorage", "SparseGrass", "Seed", "RenderInterval",
+                "CheckpointInterval", "CheckpointFile", "RestoreFile", "ExportFile", "MetricsInterval"};
     }
 
     public String getName() {
@@ -305,118 +302,174 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
     }
 
     public int getGridSize() {
-        return gridSize;
+        return parameters.getGridSize();
     }
 
     public void setGridSize(int gridSize) {
-        this.gridSize = gridSize;
+        parameters.setGridSize(gridSize);
     }
 
     public int getNumInitRabbits() {
-        return numInitRabbits;
+        return parameters.getNumInitRabbits();
     }
 
     public void setNumInitRabbits(int numInitRabbits) {
-        this.numInitRabbits = numInitRabbits;
+        parameters.setNumInitRabbits(numInitRabbits);
     }
 
     public int getNumInitGrass() {
-        return numInitGrass;
+        return parameters.getNumInitGrass();
     }
 
     public void setNumInitGrass(int numInitGrass) {
-        this.numInitGrass = numInitGrass;
+        parameters.setNumInitGrass(numInitGrass);
     }
 
     public int getGrassGrowthRate() {
-        return grassGrowthRate;
+        return parameters.getGrassGrowthRate();
     }
 
     public void setGrassGrowthRate(int grassGrowthRate) {
-        this.grassGrowthRate = grassGrowthRate;
+        parameters.setGrassGrowthRate(grassGrowthRate);
     }
 
     public int getBirthThreshold() {
-        return birthThreshold;
+        return parameters.getBirthThreshold();
     }
 
     public void setBirthThreshold(int birthThreshold) {
-        this.birthThreshold = birthThreshold;
+        parameters.setBirthThreshold(birthThreshold);
     }
 
     public int getBabyLifeSpan() {
-        return babyLifeSpan;
+        return parameters.getBabyLifeSpan();
     }
 
     public void setBabyLifeSpan(int babyLifeSpan) {
-        this.babyLifeSpan = babyLifeSpan;
+        parameters.setBabyLifeSpan(babyLifeSpan);
     }
 
     public int getAgentMinEnergy() {
-        return agentMinEnergy;
+        return parameters.getAgentMinEnergy();
     }
 
     public void setAgentMinEnergy(int agentMinEnergy) {
-        this.agentMinEnergy = agentMinEnergy;
+        parameters.setAgentMinEnergy(agentMinEnergy);
     }
 
     public int getAgentMaxEnergy() {
-        return agentMaxEnergy;
+        return parameters.getAgentMaxEnergy();
     }
 
     public void setAgentMaxEnergy(int agentMaxEnergy) {
-        this.agentMaxEnergy = agentMaxEnergy;
+        parameters.setAgentMaxEnergy(agentMaxEnergy);
     }
 
     public int getBirthFrequency() {
-        return birthFrequency;
+        return parameters.getBirthFrequency();
     }
 
     public void setBirthFrequency(int birthFrequency) {
-        this.birthFrequency = birthFrequency;
+        parameters.setBirthFrequency(birthFrequency);
     }
 
     public float getBirthGivingLoss() {
-        return birthGivingLoss;
+        return parameters.getBirthGivingLoss();
     }
 
     public void setBirthGivingLoss(float birthGivingLoss) {
-        this.birthGivingLoss = birthGivingLoss;
+        parameters.setBirthGivingLoss(birthGivingLoss);
+    }
+
+    public int getTileSize() {
+        return parameters.getTileSize();
+    }
+
+    public void setTileSize(int tileSize) {
+        parameters.setTileSize(tileSize);
+    }
+
+    public boolean isOffHeapStorage() {
+        return parameters.isOffHeapStorage();
+    }
+
+    public void setOffHeapStorage(boolean offHeapStorage) {
+        parameters.setOffHeapStorage(offHeapStorage);
+    }
+
+    public boolean isSparseGrass() {
+        return parameters.isSparseGrass();
+    }
+
+    public void setSparseGrass(boolean sparseGrass) {
+        parameters.setSparseGrass(sparseGrass);
+    }
+
+    public long getSeed() {
+        return parameters.getSeed();
+    }
+
+    public void setSeed(long seed) {
+        parameters.setSeed(seed);
+    }
+
+    public int getRenderInterval() {
+        return renderInterval;
+    }
+
+    public void setRenderInterval(int renderInterval) {
+        this.renderInterval = renderInterval;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public String getRestoreFile() {
+        return restoreFile;
+    }
+
+    public void setRestoreFile(String restoreFile) {
+        this.restoreFile = restoreFile == null ? "" : restoreFile.trim();
+    }
+
+    public String getExportFile() {
+        return exportFile;
+    }
+
+    public void setExportFile(String exportFile) {
+        this.exportFile = exportFile == null ? "" : exportFile.trim();
+    }
+
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public void setMetricsInterval(int metricsInterval) {
+        this.metricsInterval = metricsInterval;
     }
 
     private void checkParameters() {
-        if (numInitRabbits < 0) {
-            numInitRabbits = 0;
-            System.err.println("Number of initial rabbits must be non-negative number. Parameter NumInitRabbits set to 0");
-        }
-        if (numInitGrass < 0) {
-            numInitGrass = 0;
-            System.err.println("Number of initial grass must be non-negative number. Parameter NumInitRabbits set to 0");
-        }
-        if (agentMinEnergy < 0) {
-            agentMinEnergy = 1;
-            System.err.println("Agent min energy must be positive number. Parameter AgentMinEnergy set to 1");
-        }
-        if (agentMaxEnergy < agentMinEnergy) {
-            agentMaxEnergy = agentMinEnergy;
-            System.err.println("Agent max energy can not be lower than min agent energy. Parameter AgentMaxEnergy set to "
-                    + agentMinEnergy + " (min agent energy)");
-        }
-        if (birthGivingLoss > 1) {
-            birthGivingLoss = 1;
-            System.err.println("Birthgiving loss must be in [0,1]. Parameter BirthgivingLoss set to 1");
-        }
-        if (babyLifeSpan < 1) {
-            babyLifeSpan = 1;
-            System.err.println("Baby life span must be positive number. Parameter BabyLifeSpan set to 1");
-        }
-        if (birthFrequency < 1 || birthFrequency < 0) {
-            birthFrequency = 1;
-            System.err.println("Birth Frequency span must be positive number. Parameter BirthFrequency set to 1");
+        parameters.checkParameters();
+        if (renderInterval < 1) {
+            renderInterval = 1;
+            System.err.println("Render interval must be positive number. Parameter RenderInterval set to 1");
         }
-        if (grassGrowthRate < 0) {
-            grassGrowthRate = 0;
-            System.err.println("Grass Growth Rate must be non-negative number. Parameter GrassGrowthRate set to 0");
+        if (checkpointInterval < 0) {
+            checkpointInterval = 0;
+            System.err.println("Checkpoint interval must be non-negative number. Parameter CheckpointInterval set to 0 (no checkpoints)");
         }
     }
 }
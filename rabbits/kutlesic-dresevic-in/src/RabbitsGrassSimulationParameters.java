@@ -0,0 +1,268 @@
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Class that holds the parameters of the rabbits grass simulation. The RePast model exposes them through its
+ * getters and setters, while the engine reads them directly, so a run does not need a RePast controller.
+ */
+public class RabbitsGrassSimulationParameters {
+
+    // Default Values
+    private static final int GRID_SIZE = 20;
+    private static final int NUM_INIT_RABBITS = 20;
+    private static final int NUM_INIT_GRASS = 10;
+    private static final int GRASS_GROWTH_RATE = 30;
+    private static final int AGENT_MIN_ENERGY = 30;
+    private static final int AGENT_MAX_ENERGY = 50;
+    private static final int BABY_LIFE_SPAN = (AGENT_MAX_ENERGY + AGENT_MIN_ENERGY) / 2;
+    private static final int BIRTH_FREQUENCY = 20;
+    private static final float BIRTH_GIVING_LOSS = 0.3f;
+    private static final int TILE_SIZE = 0;
+    private static final boolean OFF_HEAP_STORAGE = false;
+    private static final boolean SPARSE_GRASS = false;
+    private static final long SEED = 0;
+
+    // bytes written by writeTo, ten ints, a float, two booleans and a long
+    static final int SNAPSHOT_SIZE = 10 * Integer.BYTES + Float.BYTES + 2 + Long.BYTES;
+
+    private int gridSize = GRID_SIZE;
+    private int numInitRabbits = NUM_INIT_RABBITS;
+    private int numInitGrass = NUM_INIT_GRASS;
+    private int grassGrowthRate = GRASS_GROWTH_RATE;
+    private int agentMinEnergy = AGENT_MIN_ENERGY;
+    private int agentMaxEnergy = AGENT_MAX_ENERGY;
+    private int birthThreshold = AGENT_MAX_ENERGY + 1;
+    private int babyLifeSpan = BABY_LIFE_SPAN;
+    private int birthFrequency = BIRTH_FREQUENCY;
+    private float birthGivingLoss = BIRTH_GIVING_LOSS;
+    // 0 steps the agents sequentially, otherwise tiles of tileSize x tileSize cells are stepped in parallel
+    private int tileSize = TILE_SIZE;
+    // keeps the grass and the occupancy of the grid off the heap, for grids too large for it
+    private boolean offHeapStorage = OFF_HEAP_STORAGE;
+    // grows the grass lazily in chunks that are allocated on first use, for large sparsely populated grids
+    private boolean sparseGrass = SPARSE_GRASS;
+    // seed of all random draws, the same seed replays the same run, 0 picks a random seed for every run
+    private long seed = SEED;
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    public void setGridSize(int gridSize) {
+        this.gridSize = gridSize;
+    }
+
+    public int getNumInitRabbits() {
+        return numInitRabbits;
+    }
+
+    public void setNumInitRabbits(int numInitRabbits) {
+        this.numInitRabbits = numInitRabbits;
+    }
+
+    public int getNumInitGrass() {
+        return numInitGrass;
+    }
+
+    public void setNumInitGrass(int numInitGrass) {
+        this.numInitGrass = numInitGrass;
+    }
+
+    public int getGrassGrowthRate() {
+        return grassGrowthRate;
+    }
+
+    public void setGrassGrowthRate(int grassGrowthRate) {
+        this.grassGrowthRate = grassGrowthRate;
+    }
+
+    public int getBirthThreshold() {
+        return birthThreshold;
+    }
+
+    public void setBirthThreshold(int birthThreshold) {
+        this.birthThreshold = birthThreshold;
+    }
+
+    public int getBabyLifeSpan() {
+        return babyLifeSpan;
+    }
+
+    public void setBabyLifeSpan(int babyLifeSpan) {
+        this.babyLifeSpan = babyLifeSpan;
+    }
+
+    public int getAgentMinEnergy() {
+        return agentMinEnergy;
+    }
+
+    public void setAgentMinEnergy(int agentMinEnergy) {
+        this.agentMinEnergy = agentMinEnergy;
+    }
+
+    public int getAgentMaxEnergy() {
+        return agentMaxEnergy;
+    }
+
+    public void setAgentMaxEnergy(int agentMaxEnergy) {
+        this.agentMaxEnergy = agentMaxEnergy;
+    }
+
+    public int getBirthFrequency() {
+        return birthFrequency;
+    }
+
+    public void setBirthFrequency(int birthFrequency) {
+        this.birthFrequency = birthFrequency;
+    }
+
+    public float getBirthGivingLoss() {
+        return birthGivingLoss;
+    }
+
+    public void setBirthGivingLoss(float birthGivingLoss) {
+        this.birthGivingLoss = birthGivingLoss;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public boolean isOffHeapStorage() {
+        return offHeapStorage;
+    }
+
+    public void setOffHeapStorage(boolean offHeapStorage) {
+        this.offHeapStorage = offHeapStorage;
+    }
+
+    public boolean isSparseGrass() {
+        return sparseGrass;
+    }
+
+    public void setSparseGrass(boolean sparseGrass) {
+        this.sparseGrass = sparseGrass;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the parameter by its name, through its setter, the same way RePast does for the model.
+     *
+     * @param name  the name as in {@link RabbitsGrassSimulationModel#getInitParam()}, e.g. GridSize
+     * @param value the value, rounded for integer parameters and true if not 0 for boolean ones
+     */
+    public void setParameter(String name, double value) {
+        for (Method method : RabbitsGrassSimulationParameters.class.getMethods()) {
+            if (method.getName().equals("set" + name) && method.getParameterCount() == 1) {
+                Class<?> type = method.getParameterTypes()[0];
+                try {
+                    if (type == int.class) {
+                        method.invoke(this, (int) Math.round(value));
+                    } else if (type == long.class) {
+                        method.invoke(this, Math.round(value));
+                    } else if (type == float.class) {
+                        method.invoke(this, (float) value);
+                    } else if (type == boolean.class) {
+                        method.invoke(this, value != 0);
+                    } else {
+                        method.invoke(this, value);
+                    }
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Can't set parameter " + name, e);
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown parameter " + name);
+    }
+
+    /**
+     * Writes the parameters for a checkpoint, see {@link RabbitsGrassSimulationCheckpoint}.
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(gridSize);
+        buffer.putInt(numInitRabbits);
+        buffer.putInt(numInitGrass);
+        buffer.putInt(grassGrowthRate);
+        buffer.putInt(agentMinEnergy);
+        buffer.putInt(agentMaxEnergy);
+        buffer.putInt(birthThreshold);
+        buffer.putInt(babyLifeSpan);
+        buffer.putInt(birthFrequency);
+        buffer.putFloat(birthGivingLoss);
+        buffer.putInt(tileSize);
+        buffer.put((byte) (offHeapStorage ? 1 : 0));
+        buffer.put((byte) (sparseGrass ? 1 : 0));
+        buffer.putLong(seed);
+    }
+
+    static RabbitsGrassSimulationParameters readFrom(ByteBuffer buffer) {
+        RabbitsGrassSimulationParameters parameters = new RabbitsGrassSimulationParameters();
+        parameters.gridSize = buffer.getInt();
+        parameters.numInitRabbits = buffer.getInt();
+        parameters.numInitGrass = buffer.getInt();
+        parameters.grassGrowthRate = buffer.getInt();
+        parameters.agentMinEnergy = buffer.getInt();
+        parameters.agentMaxEnergy = buffer.getInt();
+        parameters.birthThreshold = buffer.getInt();
+        parameters.babyLifeSpan = buffer.getInt();
+        parameters.birthFrequency = buffer.getInt();
+        parameters.birthGivingLoss = buffer.getFloat();
+        parameters.tileSize = buffer.getInt();
+        parameters.offHeapStorage = buffer.get() != 0;
+        parameters.sparseGrass = buffer.get() != 0;
+        parameters.seed = buffer.getLong();
+        return parameters;
+    }
+
+    public void checkParameters() {
+        if (numInitRabbits < 0) {
+            numInitRabbits = 0;
+            System.err.println("Number of initial rabbits must be non-negative number. Parameter NumInitRabbits set to 0");
+        }
+        if (numInitGrass < 0) {
+            numInitGrass = 0;
+            System.err.println("Number of initial grass must be non-negative number. Parameter NumInitRabbits set to 0");
+        }
+        if (agentMinEnergy < 0) {
+            agentMinEnergy = 1;
+            System.err.println("Agent min energy must be positive number. Parameter AgentMinEnergy set to 1");
+        }
+        if (agentMaxEnergy < agentMinEnergy) {
+            agentMaxEnergy = agentMinEnergy;
+            System.err.println("Agent max energy can not be lower than min agent energy. Parameter AgentMaxEnergy set to "
+                    + agentMinEnergy + " (min agent energy)");
+        }
+        if (birthGivingLoss > 1) {
+            birthGivingLoss = 1;
+            System.err.println("Birthgiving loss must be in [0,1]. Parameter BirthgivingLoss set to 1");
+        }
+        if (babyLifeSpan < 1) {
+            babyLifeSpan = 1;
+            System.err.println("Baby life span must be positive number. Parameter BabyLifeSpan set to 1");
+        }
+        if (birthFrequency < 1 || birthFrequency < 0) {
+            birthFrequency = 1;
+            System.err.println("Birth Frequency span must be positive number. Parameter BirthFrequency set to 1");
+        }
+        if (grassGrowthRate < 0) {
+            grassGrowthRate = 0;
+            System.err.println("Grass Growth Rate must be non-negative number. Parameter GrassGrowthRate set to 0");
+        }
+        if (tileSize < 0) {
+            tileSize = 0;
+            System.err.println("Tile size must be non-negative number. Parameter TileSize set to 0 (sequential stepping)");
+        }
+    }
+}
@@ -1,115 +1,232 @@
-import uchicago.src.sim.space.Object2DGrid;
+import java.nio.ByteBuffer;
 
 /**
- * Class that implements the simulation space of the rabbits grass simulation.
+ * Class that implements the simulation space of the rabbits grass simulation. The space is not synchronized: the
+ * engine either works on it from one thread, or steps disjoint tiles of it concurrently.
  */
 public class RabbitsGrassSimulationSpace {
 
     private static final int GRASS_ON_CELL_BOUNDARY = 16;
-
-    private Object2DGrid grassSpace;
-    private Object2DGrid agentSpace;
+    private static final int EMPTY_CELL = -1;
+    //mapping of a move to a neighbouring cell: 0 -> (-1,0), 1 -> (0,-1), 2 -> (0,1), 3 -> (1,0)
+    static final int[] MOVE_X = {-1, 0, 0, 1};
+    static final int[] MOVE_Y = {0, -1, 1, 0};
+
+    private final SplitMixRandom random;
+    private GrassField grassField;
+    // slot of the agent in the agent store for every cell, EMPTY_CELL if there is no agent
+    private final CellArray agentCells;
+    // dense list of the empty cells and the position of every cell in it (-1 for occupied cells)
+    private final CellArray freeCells;
+    private final CellArray freeCellPositions;
+    private int freeCellCount;
+    private int sizeX;
+    private int sizeY;
     private int gridSize;
-    private int totalGrassAmount;
-
-    public RabbitsGrassSimulationSpace(int xSize, int ySize) {
-        grassSpace = new Object2DGrid(xSize, ySize);
-        agentSpace = new Object2DGrid(xSize, ySize);
-        for (int i = 0; i < xSize; i++) {
-            for (int j = 0; j < ySize; j++) {
-                grassSpace.putObjectAt(i, j, 0);
-            }
+
+    /**
+     * @param offHeap     whether the grass and the occupancy are kept off the heap, for grids too large for it
+     * @param sparseGrass whether the grass grows lazily in chunks allocated on first use, see {@link SparseGrassField}
+     * @param random      the stream of the space, it places the agents and grows the grass
+     */
+    public RabbitsGrassSimulationSpace(int xSize, int ySize, boolean offHeap, boolean sparseGrass,
+                                       SplitMixRandom random) {
+        this.random = random;
+        long gridCells = (long) xSize * ySize;
+        if (gridCells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid of " + xSize + " x " + ySize + " has " + gridCells
+                    + " cells, more than the " + Integer.MAX_VALUE + " cells a grid can index");
+        }
+        int cells = (int) gridCells;
+        grassField = GrassField.create(xSize, ySize, GRASS_ON_CELL_BOUNDARY, offHeap, sparseGrass, random);
+        agentCells = CellArray.allocate(cells, Integer.BYTES, offHeap);
+        freeCells = CellArray.allocate(cells, Integer.BYTES, offHeap);
+        freeCellPositions = CellArray.allocate(cells, Integer.BYTES, offHeap);
+        for (int cell = 0; cell < cells; cell++) {
+            agentCells.set(cell, EMPTY_CELL);
+            freeCells.set(cell, cell);
+            freeCellPositions.set(cell, cell);
         }
+        freeCellCount = cells;
+        sizeX = xSize;
+        sizeY = ySize;
         gridSize = xSize;
-        totalGrassAmount = 0;
     }
 
     public void growGrass(int grass) {
-        // Randomly place grass in grassSpace
-        for (int i = 0; i < grass; i++) {
-            // Choose coordinates
-            int x = (int) (Math.random() * grassSpace.getSizeX());
-            int y = (int) (Math.random() * grassSpace.getSizeY());
-
-            // Get the value of the object at those coordinates
-            int currentValue = getGrassAt(x, y);
-
-            // Replace the Integer object with another one with the new value
-            int newGrassAmount = Math.min(currentValue + 1, GRASS_ON_CELL_BOUNDARY);
-            grassSpace.putObjectAt(x, y, newGrassAmount);
-            totalGrassAmount += newGrassAmount - currentValue;
-        }
+        // Randomly place grass in grassSpace, the field keeps every cell under GRASS_ON_CELL_BOUNDARY
+        grassField.growGrass(grass, random);
     }
 
-    private int getGrassAt(int x, int y) {
-        return grassSpace.getObjectAt(x, y) == null ? 0 : (Integer) grassSpace.getObjectAt(x, y);
+    public GrassField getGrassField() {
+        return grassField;
     }
 
-    public Object2DGrid getCurrentGrassSpace() {
-        return grassSpace;
+    private boolean isCellOccupied(int x, int y) {
+        return agentCells.get(x + y * sizeX) != EMPTY_CELL;
     }
 
-    private boolean isCellOccupied(int x, int y) {
-        return agentSpace.getObjectAt(x, y) != null;
-    }
-
-    public boolean didAddAgentToSpace(RabbitsGrassSimulationAgent agent) {
-        boolean retVal = false;
-        int count = 0;
-        int countLimit = (int) (agentSpace.getSizeX() * agentSpace.getSizeY() * 0.7);
-
-        while (!retVal && (count < countLimit)) {
-            int x = (int) (Math.random() * agentSpace.getSizeX());
-            int y = (int) (Math.random() * agentSpace.getSizeY());
-            synchronized (this) {
-                if (!isCellOccupied(x, y)) {
-                    agentSpace.putObjectAt(x, y, agent);
-                    agent.setXY(x, y);
-                    agent.setGrassSpace(this);
-                    retVal = true;
-                }
-            }
-            count++;
+    /**
+     * @return bitmask of the moves from the cell that lead to an empty neighbouring cell, bit i is set if the cell
+     * (x + MOVE_X[i], y + MOVE_Y[i]) on the torus is empty
+     */
+    public int getFreeNeighbours(int x, int y) {
+        int left = x == 0 ? sizeX - 1 : x - 1;
+        int right = x == sizeX - 1 ? 0 : x + 1;
+        int up = y == 0 ? sizeY - 1 : y - 1;
+        int down = y == sizeY - 1 ? 0 : y + 1;
+        int mask = 0;
+        if (agentCells.get(left + y * sizeX) == EMPTY_CELL) {
+            mask |= 1;
+        }
+        if (agentCells.get(x + up * sizeX) == EMPTY_CELL) {
+            mask |= 2;
+        }
+        if (agentCells.get(x + down * sizeX) == EMPTY_CELL) {
+            mask |= 4;
+        }
+        if (agentCells.get(right + y * sizeX) == EMPTY_CELL) {
+            mask |= 8;
         }
+        return mask;
+    }
 
-        return retVal;
+    /**
+     * @return slot of the agent on the cell, -1 if the cell is empty
+     */
+    public int getAgentAt(int x, int y) {
+        return agentCells.get(x + y * sizeX);
     }
 
-    public Object2DGrid getCurrentAgentSpace() {
-        return agentSpace;
+    /**
+     * Puts the agent from the given slot of the store on a cell chosen uniformly among the free ones.
+     *
+     * @return false if there is no free cell
+     */
+    public boolean didAddAgentToSpace(AgentStore agents, int slot) {
+        if (freeCellCount == 0) {
+            return false;
+        }
+        int cell = freeCells.get(random.nextInt(freeCellCount));
+        occupyCell(cell, slot);
+        agents.setXY(slot, cell % sizeX, cell / sizeX);
+        return true;
     }
 
     public void removeAgentAt(int x, int y) {
-        agentSpace.putObjectAt(x, y, null);
+        int cell = x + y * sizeX;
+        agentCells.set(cell, EMPTY_CELL);
+        // append the cell to the free cells
+        freeCells.set(freeCellCount, cell);
+        freeCellPositions.set(cell, freeCellCount);
+        freeCellCount++;
+    }
+
+    private void occupyCell(int cell, int slot) {
+        agentCells.set(cell, slot);
+        // the last free cell takes the place of the occupied one
+        int position = freeCellPositions.get(cell);
+        int lastCell = freeCells.get(freeCellCount - 1);
+        freeCells.set(position, lastCell);
+        freeCellPositions.set(lastCell, position);
+        freeCellPositions.set(cell, -1);
+        freeCellCount--;
+    }
+
+    /**
+     * Updates the slot of the agent on the cell, used when the agent store moves an agent to another slot.
+     */
+    public void setAgentAt(int x, int y, int slot) {
+        agentCells.set(x + y * sizeX, slot);
     }
 
     public int removeGrassAt(int x, int y) {
-        int grassAmount = getGrassAt(x, y);
-        grassSpace.putObjectAt(x, y, 0);
-        totalGrassAmount -= grassAmount;
-        return grassAmount;
+        return grassField.removeGrassAt(x, y);
     }
 
-    public synchronized boolean didMoveAgentAt(int x, int y, int newX, int newY) {
+    public boolean didMoveAgentAt(int x, int y, int newX, int newY) {
         if (isCellOccupied(newX, newY)) {
             return false;
         }
-        RabbitsGrassSimulationAgent agent = (RabbitsGrassSimulationAgent) agentSpace.getObjectAt(x, y);
-        removeAgentAt(x, y);
-        agent.setXY(newX, newY);
-        agentSpace.putObjectAt(newX, newY, agent);
+        int cell = x + y * sizeX;
+        int newCell = newX + newY * sizeX;
+        agentCells.set(newCell, agentCells.get(cell));
+        agentCells.set(cell, EMPTY_CELL);
+        // the old cell takes the place of the new one in the free cells, so the free cell count does not change
+        // and only entries of these two cells are written, which keeps moves in disjoint tiles independent
+        int position = freeCellPositions.get(newCell);
+        freeCells.set(position, cell);
+        freeCellPositions.set(cell, position);
+        freeCellPositions.set(newCell, -1);
         return true;
     }
 
+    public int getFreeCellCount() {
+        return freeCellCount;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
     public int getGridSize() {
         return gridSize;
     }
 
     public int getTotalGrassAmount() {
-        return totalGrassAmount;
+        return grassField.getTotalGrassAmount();
     }
 
     public static int getGrassOnCellBoundary() {
         return GRASS_ON_CELL_BOUNDARY;
     }
+
+    /**
+     * @return bytes written by {@link #writeTo(ByteBuffer)}
+     */
+    long getSnapshotSize() {
+        return Long.BYTES + grassField.getSnapshotSize()
+                + (1L + freeCellCount) * Integer.BYTES;
+    }
+
+    /**
+     * Writes the state of the random generator, the grass and the free cells in their order, which decides where the next agents
+     * are placed. The occupied cells are not written, the space takes them from the restored agent store in
+     * {@link #restoreAgents(AgentStore)}.
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(random.getState());
+        grassField.writeTo(buffer);
+        buffer.putInt(freeCellCount);
+        freeCells.putInts(buffer, freeCellCount);
+    }
+
+    static RabbitsGrassSimulationSpace readFrom(ByteBuffer buffer, int xSize, int ySize, boolean offHeap,
+                                                boolean sparseGrass) {
+        RabbitsGrassSimulationSpace space = new RabbitsGrassSimulationSpace(xSize, ySize, offHeap, sparseGrass,
+                new SplitMixRandom(buffer.getLong()));
+        space.grassField.readFrom(buffer);
+        space.freeCellCount = buffer.getInt();
+        space.freeCells.getInts(buffer, space.freeCellCount);
+        for (int cell = 0; cell < space.freeCellPositions.length(); cell++) {
+            space.freeCellPositions.set(cell, -1);
+        }
+        for (int position = 0; position < space.freeCellCount; position++) {
+            space.freeCellPositions.set(space.freeCells.get(position), position);
+        }
+        return space;
+    }
+
+    /**
+     * Puts every agent of the store on its cell, which has to be one of the cells missing from the free cells.
+     */
+    void restoreAgents(AgentStore agents) {
+        for (int slot = 0; slot < agents.size(); slot++) {
+            agentCells.set(agents.getX(slot) + agents.getY(slot) * sizeX, slot);
+        }
+    }
 }
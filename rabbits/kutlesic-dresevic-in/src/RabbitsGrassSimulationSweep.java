@@ -0,0 +1,181 @@
+import javax.management.JMException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Parameter sweep over the rabbits grass simulation. Every point of the sweep is an independent headless
+ * {@link RabbitsGrassSimulationEngine}, the points run concurrently on all cores and one CSV row is written as soon
+ * as a run finishes.
+ * <p>
+ * Usage: {@code RabbitsGrassSimulationSweep [--ticks=N] [--threads=N] [--out=file.csv] [--metrics=seconds]
+ * Name=values ...}, where Name is one of the parameters of {@link RabbitsGrassSimulationModel#getInitParam()} and
+ * values is either a single value, a list {@code a,b,c} or a range {@code from:to:step} (both ends included). With
+ * --metrics, all runs share one {@link RabbitsGrassSimulationMetrics}, which is registered over JMX and printed to
+ * the standard error every given number of seconds.
+ */
+public class RabbitsGrassSimulationSweep {
+
+    private static final int MAX_TICKS = 1000;
+
+    private final Map<String, double[]> ranges;
+    private final int maxTicks;
+    private final int threads;
+    private RabbitsGrassSimulationMetrics metrics;
+
+    public RabbitsGrassSimulationSweep(Map<String, double[]> ranges, int maxTicks, int threads) {
+        this.ranges = ranges;
+        this.maxTicks = maxTicks;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, JMException {
+        Map<String, double[]> ranges = new LinkedHashMap<>();
+        int maxTicks = MAX_TICKS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String out = null;
+        int metricsPeriod = 0;
+
+        for (String arg : args) {
+            if (arg.startsWith("--ticks=")) {
+                maxTicks = Integer.parseInt(arg.substring("--ticks=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--out=")) {
+                out = arg.substring("--out=".length());
+            } else if (arg.startsWith("--metrics=")) {
+                metricsPeriod = Integer.parseInt(arg.substring("--metrics=".length()));
+            } else {
+                String[] nameAndValues = arg.split("=", 2);
+                if (nameAndValues.length != 2) {
+                    throw new IllegalArgumentException("Expected Name=values, got " + arg);
+                }
+                ranges.put(nameAndValues[0], parseValues(nameAndValues[1]));
+            }
+        }
+
+        Writer writer = out == null ? new OutputStreamWriter(System.out) : new FileWriter(out);
+        RabbitsGrassSimulationSweep sweep = new RabbitsGrassSimulationSweep(ranges, maxTicks, threads);
+        try (PrintWriter csv = new PrintWriter(writer);
+             RabbitsGrassSimulationMetrics metrics = new RabbitsGrassSimulationMetrics()) {
+            if (metricsPeriod > 0) {
+                metrics.register("sweep");
+                metrics.startReporting(metricsPeriod, System.err);
+                sweep.setMetrics(metrics);
+            }
+            sweep.run(csv);
+        }
+    }
+
+    public void setMetrics(RabbitsGrassSimulationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parses a single value, a list "a,b,c" or a range "from:to:step".
+     */
+    static double[] parseValues(String values) {
+        if (values.contains(":")) {
+            String[] range = values.split(":");
+            double from = Double.parseDouble(range[0]);
+            double to = Double.parseDouble(range[1]);
+            double step = range.length > 2 ? Double.parseDouble(range[2]) : 1;
+            if (step <= 0) {
+                throw new IllegalArgumentException("Step of the range " + values + " must be positive");
+            }
+            int count = (int) Math.floor((to - from) / step + 1e-9) + 1;
+            double[] result = new double[Math.max(count, 0)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = from + i * step;
+            }
+            return result;
+        }
+        return Arrays.stream(values.split(",")).mapToDouble(Double::parseDouble).toArray();
+    }
+
+    /**
+     * Runs all points of the sweep and writes a header and one row per run.
+     */
+    public void run(PrintWriter csv) throws InterruptedException {
+        List<String> names = new ArrayList<>(ranges.keySet());
+        List<double[]> points = new ArrayList<>();
+        expand(names, 0, new double[names.size()], points);
+
+        csv.println("run," + String.join(",", names)
+                + ",ticks,averageLifeTime,averageBornBabes,populationSize,livingAgents,seconds");
+        csv.flush();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            for (int i = 0; i < points.size(); i++) {
+                int run = i;
+                double[] point = points.get(i);
+                completionService.submit(() -> runPoint(run, names, point));
+            }
+            for (int i = 0; i < points.size(); i++) {
+                try {
+                    csv.println(completionService.take().get());
+                    csv.flush();
+                } catch (ExecutionException e) {
+                    System.err.println("Run of the sweep failed: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void expand(List<String> names, int index, double[] point, List<double[]> points) {
+        if (index == names.size()) {
+            points.add(point.clone());
+            return;
+        }
+        for (double value : ranges.get(names.get(index))) {
+            point[index] = value;
+            expand(names, index + 1, point, points);
+        }
+    }
+
+    private String runPoint(int run, List<String> names, double[] point) {
+        RabbitsGrassSimulationParameters parameters = new RabbitsGrassSimulationParameters();
+        for (int i = 0; i < names.size(); i++) {
+            parameters.setParameter(names.get(i), point[i]);
+        }
+        parameters.checkParameters();
+
+        long startTime = System.nanoTime();
+        RabbitsGrassSimulationEngine engine = new RabbitsGrassSimulationEngine(parameters, false);
+        engine.setMetrics(metrics);
+        int ticks = engine.run(maxTicks);
+
+        StringBuilder row = new StringBuilder().append(run);
+        for (double value : point) {
+            row.append(',').append(format(value));
+        }
+        return row.append(',').append(ticks)
+                .append(',').append(engine.getAverageLifeTime())
+                .append(',').append(engine.getAverageBornBabes())
+                .append(',').append(engine.getPopulationSize())
+                .append(',').append(engine.getAgents().size())
+                .append(',').append(String.format(Locale.ROOT, "%.3f", (System.nanoTime() - startTime) / 1_000_000_000.0))
+                .toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Running mean and variance of a series of values, updated one value at a time with Welford's algorithm, so no
+ * values are kept and no precision is lost to cancellation.
+ */
+public class RunningStatistics {
+
+    private long count = 0;
+    private double mean = 0;
+    // sum of squared differences from the current mean
+    private double m2 = 0;
+
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the sample variance, 0 for less than two values
+     */
+    public double getVariance() {
+        return count > 1 ? m2 / (count - 1) : 0;
+    }
+
+    /**
+     * @return half the width of the normal confidence interval of the mean for the given z value
+     */
+    public double getConfidenceHalfWidth(double z) {
+        return count > 1 ? z * Math.sqrt(getVariance() / count) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * For few values the normal interval is too narrow, e.g. by 30% for 5 values at z = 1.96.
+     *
+     * @return half the width of the Student t confidence interval of the mean at the confidence level of the z value
+     */
+    public double getStudentHalfWidth(double z) {
+        return count > 1 ? studentQuantile(z, count - 1) * Math.sqrt(getVariance() / count)
+                : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Quantile of the Student t distribution at the level of the normal quantile z, by the Cornish-Fisher expansion
+     * in 1 / degrees of freedom. At z = 1.96 it is off by less than 0.1% from 3 degrees of freedom on, by 1% at 2
+     * and by 11% at 1.
+     */
+    static double studentQuantile(double z, long degreesOfFreedom) {
+        double v = degreesOfFreedom;
+        double z2 = z * z;
+        double g1 = (z2 + 1) * z / 4;
+        double g2 = ((5 * z2 + 16) * z2 + 3) * z / 96;
+        double g3 = (((3 * z2 + 19) * z2 + 17) * z2 - 15) * z / 384;
+        double g4 = ((((79 * z2 + 776) * z2 + 1482) * z2 - 1920) * z2 - 945) * z / 92160;
+        return z + (g1 + (g2 + (g3 + g4 / v) / v) / v) / v;
+    }
+}
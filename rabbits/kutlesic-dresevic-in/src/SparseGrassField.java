@@ -0,0 +1,252 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Grass field for large, sparsely populated worlds. Cells are kept in chunks of CHUNK_SIZE x CHUNK_SIZE cells that
+ * are allocated when a cell in them is first looked at, and growing grass only counts the units that were grown on
+ * the whole field, so a tick costs nothing here no matter how large the grid is.
+ * <p>
+ * Every cell remembers how many units were grown when it was last brought up to date. When the cell is looked at
+ * again, the units that landed on it in between are binomial with the probability 1 / cells. Nothing is eaten from a
+ * cell while nobody looks at it, so clamping their sum at the boundary once is the same as adding them one by one.
+ * Each cell follows the same distribution as in a {@link DenseGrassField}, only the tiny negative correlation of
+ * the cells that share the units of one tick is lost.
+ * <p>
+ * Bringing a cell up to date draws random numbers, so only the engine does it, when rabbits eat or grass is added.
+ * {@link #getGrassAt(int, int)}, which the GUI draws the field with, neither draws random numbers nor allocates
+ * chunks: it shows the expected amount of a cell that is not up to date, so drawing never changes a run.
+ * <p>
+ * The total is kept as the cells change, like the count of an {@link EnergyBuckets}, so it costs nothing per cell.
+ * Cells that were never touched, with no grass and no units, all expect the same grass. For the touched cells the
+ * stored grass and the sum of their grown units are kept, and the units they have not got yet are counted with their
+ * expected value without the boundary, which is tiny for any single cell of a large grid.
+ */
+public class SparseGrassField extends GrassField {
+
+    private static final int CHUNK_SHIFT = 5;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+    private static final class Chunk {
+        final byte[] grass = new byte[CHUNK_CELLS];
+        // grown units of the field when the cell was last brought up to date
+        final long[] grownAt = new long[CHUNK_CELLS];
+    }
+
+    private final int chunksX;
+    // chunks are allocated concurrently when the engine steps tiles in parallel
+    private final AtomicReferenceArray<Chunk> chunks;
+    // brings cells up to date outside of the agent moves
+    private final Random random;
+    private final double probability;
+    private long grownUnits = 0;
+    // running sums over the cells, updated concurrently when tiles are stepped in parallel
+    private final LongAdder storedGrass = new LongAdder();
+    private final LongAdder touchedCells = new LongAdder();
+    private final LongAdder touchedGrownAt = new LongAdder();
+
+    public SparseGrassField(int sizeX, int sizeY, int boundary, Random random) {
+        super(sizeX, sizeY, boundary);
+        if (boundary > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Sparse grass field keeps at most " + Byte.MAX_VALUE + " units on a cell");
+        }
+        this.random = random;
+        this.probability = 1.0 / ((long) sizeX * sizeY);
+        chunksX = (sizeX + CHUNK_MASK) >> CHUNK_SHIFT;
+        int chunksY = (sizeY + CHUNK_MASK) >> CHUNK_SHIFT;
+        chunks = new AtomicReferenceArray<>(chunksX * chunksY);
+    }
+
+    private Chunk chunkAt(int x, int y) {
+        int index = (x >> CHUNK_SHIFT) + (y >> CHUNK_SHIFT) * chunksX;
+        Chunk chunk = chunks.get(index);
+        if (chunk == null) {
+            Chunk newChunk = new Chunk();
+            chunk = chunks.compareAndSet(index, null, newChunk) ? newChunk : chunks.get(index);
+        }
+        return chunk;
+    }
+
+    private static int offsetOf(int x, int y) {
+        return (x & CHUNK_MASK) + ((y & CHUNK_MASK) << CHUNK_SHIFT);
+    }
+
+    /**
+     * Adds the units grown since the cell was last brought up to date.
+     *
+     * @return the grass amount of the cell
+     */
+    private int update(Chunk chunk, int offset, Random random) {
+        int grassAmount = chunk.grass[offset];
+        long units = grownUnits - chunk.grownAt[offset];
+        if (units > 0) {
+            set(chunk, offset, grassAmount + binomial(units, probability, boundary - grassAmount, random),
+                    grownUnits);
+            grassAmount = chunk.grass[offset];
+        }
+        return grassAmount;
+    }
+
+    /**
+     * Changes the cell and the running sums.
+     */
+    private void set(Chunk chunk, int offset, int grassAmount, long grownAt) {
+        int oldGrassAmount = chunk.grass[offset];
+        long oldGrownAt = chunk.grownAt[offset];
+        if (oldGrassAmount != 0 || oldGrownAt != 0) {
+            touchedCells.decrement();
+            touchedGrownAt.add(-oldGrownAt);
+        }
+        if (grassAmount != 0 || grownAt != 0) {
+            touchedCells.increment();
+            touchedGrownAt.add(grownAt);
+        }
+        storedGrass.add(grassAmount - oldGrassAmount);
+        chunk.grass[offset] = (byte) grassAmount;
+        chunk.grownAt[offset] = grownAt;
+    }
+
+    /**
+     * @return the grass of the cell if it is up to date, otherwise its expected grass rounded
+     */
+    public int getGrassAt(int x, int y) {
+        Chunk chunk = chunks.get((x >> CHUNK_SHIFT) + (y >> CHUNK_SHIFT) * chunksX);
+        if (chunk == null) {
+            return (int) Math.round(expectedGrassAmount(0, grownUnits));
+        }
+        int offset = offsetOf(x, y);
+        return (int) Math.round(expectedGrassAmount(chunk.grass[offset], grownUnits - chunk.grownAt[offset]));
+    }
+
+    public int addGrassAt(int x, int y) {
+        Chunk chunk = chunkAt(x, y);
+        int offset = offsetOf(x, y);
+        int grassAmount = update(chunk, offset, random);
+        if (grassAmount >= boundary) {
+            return 0;
+        }
+        set(chunk, offset, grassAmount + 1, chunk.grownAt[offset]);
+        return 1;
+    }
+
+    /**
+     * Only counts the units, the cells get them when they are looked at.
+     */
+    public void growGrass(int grass, Random random) {
+        grownUnits += grass;
+    }
+
+    public int removeGrassAt(int x, int y) {
+        return clearGrassAt(x, y, random);
+    }
+
+    public int clearGrassAt(int x, int y, Random random) {
+        Chunk chunk = chunkAt(x, y);
+        int offset = offsetOf(x, y);
+        int grassAmount = update(chunk, offset, random);
+        set(chunk, offset, 0, chunk.grownAt[offset]);
+        return grassAmount;
+    }
+
+    /**
+     * The cleared grass is already subtracted from the running sums when the cell is cleared.
+     */
+    public void subtractFromTotal(int grassAmount) {
+    }
+
+    /**
+     * Bringing the cells up to date would draw random numbers and allocate every chunk, so the units the cells have
+     * not got yet are counted by their expected grass amount instead.
+     *
+     * @return the expected total grass amount, given the cells that were looked at
+     */
+    public int getTotalGrassAmount() {
+        long touched = touchedCells.sum();
+        long stored = storedGrass.sum();
+        double pending = Math.min(probability * (touched * (double) grownUnits - touchedGrownAt.sum()),
+                touched * (double) boundary - stored);
+        double untouched = ((long) sizeX * sizeY - touched) * expectedGrassAmount(0, grownUnits);
+        return (int) Math.round(stored + Math.max(pending, 0) + untouched);
+    }
+
+    /**
+     * @return expected value of min(grassAmount + B(units, probability), boundary)
+     */
+    private double expectedGrassAmount(int grassAmount, long units) {
+        if (units <= 0 || grassAmount >= boundary) {
+            return grassAmount;
+        }
+        double q = 1 - probability;
+        double p = Math.exp(units * Math.log1p(-probability));
+        double expected = 0;
+        double below = 0;
+        for (int k = 0; k < boundary - grassAmount && k < units; k++) {
+            expected += (grassAmount + k) * p;
+            below += p;
+            p *= (units - k) / (k + 1.0) * probability / q;
+        }
+        return expected + boundary * Math.max(0, 1 - below);
+    }
+
+    private int getAllocatedChunks() {
+        int allocated = 0;
+        for (int index = 0; index < chunks.length(); index++) {
+            if (chunks.get(index) != null) {
+                allocated++;
+            }
+        }
+        return allocated;
+    }
+
+    long getSnapshotSize() {
+        return Long.BYTES + Integer.BYTES + getAllocatedChunks() * (Integer.BYTES + CHUNK_CELLS * (1L + Long.BYTES));
+    }
+
+    /**
+     * Writes the grown units and the allocated chunks with their index.
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(grownUnits);
+        buffer.putInt(getAllocatedChunks());
+        for (int index = 0; index < chunks.length(); index++) {
+            Chunk chunk = chunks.get(index);
+            if (chunk != null) {
+                buffer.putInt(index);
+                buffer.put(chunk.grass);
+                buffer.asLongBuffer().put(chunk.grownAt);
+                buffer.position(buffer.position() + CHUNK_CELLS * Long.BYTES);
+            }
+        }
+    }
+
+    /**
+     * Reads the chunks and recounts the running sums from them.
+     */
+    void readFrom(ByteBuffer buffer) {
+        grownUnits = buffer.getLong();
+        for (int index = 0; index < chunks.length(); index++) {
+            chunks.set(index, null);
+        }
+        storedGrass.reset();
+        touchedCells.reset();
+        touchedGrownAt.reset();
+        int allocated = buffer.getInt();
+        for (int i = 0; i < allocated; i++) {
+            Chunk chunk = new Chunk();
+            chunks.set(buffer.getInt(), chunk);
+            buffer.get(chunk.grass);
+            buffer.asLongBuffer().get(chunk.grownAt);
+            buffer.position(buffer.position() + CHUNK_CELLS * Long.BYTES);
+            for (int offset = 0; offset < CHUNK_CELLS; offset++) {
+                if (chunk.grass[offset] != 0 || chunk.grownAt[offset] != 0) {
+                    touchedCells.increment();
+                    touchedGrownAt.add(chunk.grownAt[offset]);
+                    storedGrass.add(chunk.grass[offset]);
+                }
+            }
+        }
+    }
+}
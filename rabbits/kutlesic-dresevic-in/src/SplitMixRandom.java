@@ -0,0 +1,73 @@
+import java.util.Random;
+
+/**
+ * SplitMix64 generator behind the java.util.Random interface, so it can be passed wherever the model takes a Random.
+ * Unlike Random it is not synchronized: every thread draws from its own stream. A stream is fully determined by its
+ * 64 bit state, and {@link #stream(long, long)} derives any number of independent streams from one seed, so a run
+ * is replayed exactly from its seed.
+ */
+public class SplitMixRandom extends Random {
+
+    private static final long serialVersionUID = 1L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    // not initialized here, the Random constructor sets it through setSeed before the field initializers run
+    private long state;
+
+    public SplitMixRandom(long seed) {
+        super(seed);
+    }
+
+    /**
+     * @return the generator of the given stream of the seed
+     */
+    public static SplitMixRandom stream(long seed, long stream) {
+        return new SplitMixRandom(seedOf(seed, stream));
+    }
+
+    /**
+     * @return the state that starts the given stream of the seed, different streams do not overlap in practice
+     */
+    public static long seedOf(long seed, long stream) {
+        return mix(seed + mix(stream * GOLDEN_GAMMA));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Sets the state as it is, so {@link #getState()} and setSeed save and restore the generator.
+     */
+    @Override
+    public void setSeed(long seed) {
+        state = seed;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong() {
+        return mix(state += GOLDEN_GAMMA);
+    }
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+}
@@ -0,0 +1,274 @@
+package agents;
+
+import logist.topology.Topology;
+import logist.topology.Topology.City;
+
+import java.util.Arrays;
+
+/**
+ * Markov decision process of the reactive agent over dense integer indices.
+ * <p>
+ * With n cities, the state (i, j) means that the agent is in the city with id i and sees a task to the city with id j,
+ * j = n means that there is no task. Its index is i * (n + 1) + j. The states (i, i) do not exist and have no
+ * actions.
+ * <p>
+ * The possible actions of all states are numbered consecutively as state-action pairs, the pairs of the state s are
+ * pairStart[s] to pairStart[s + 1] - 1. The action of a pair is the id of the city the agent moves to, or
+ * {@link #ACCEPT_TASK}. R is a flat array over the pairs and T is a sparse matrix in compressed row format. Pairs
+ * that lead to the same distribution of successors share its row, which is rows[p] for the pair p: the successors
+ * of the row r are successors[k] with the probabilities probabilities[k] for k from rowStart[r] to
+ * rowStart[r + 1] - 1.
+ * <p>
+ * The process is built in three passes: the pairs of every state in the order of the states
+ * ({@link #addPair(int, int)}), their rewards ({@link #setReward(int, double)}) and the rows of T
+ * ({@link #addRow()}, {@link #addTransition(int, double)}) with the row of every pair ({@link #setRow(int, int)}).
+ * <p>
+ * For solvers that propagate the change of one value, the finished process also has the transposed indices: the
+ * entries k with successors[k] = s are columnEntries[c] for c from columnStart[s] to columnStart[s + 1] - 1, with
+ * their rows in entryRows, and the pairs using the row r are rowPairs[c] for c from rowPairStart[r] to
+ * rowPairStart[r + 1] - 1.
+ */
+public class MarkovDecisionProcess {
+
+    public static final int ACCEPT_TASK = -1;
+
+    private final City[] cities;
+    private final int numStates;
+
+    private final int[] pairStart;
+    private int numPairs = 0;
+    private int[] actions = new int[16];
+    private int[] pairStates;
+    private double[] rewards;
+
+    private int[] rows;
+    private int numRows = 0;
+    private int[] rowStart = new int[16];
+    private int numTransitions = 0;
+    private int[] successors = new int[16];
+    private double[] probabilities = new double[16];
+
+    private int[] columnStart;
+    private int[] columnEntries;
+    private int[] entryRows;
+    private int[] rowPairStart;
+    private int[] rowPairs;
+
+    // states whose start was set, the rest start where the last one ends
+    private int startedStates = 0;
+
+    public MarkovDecisionProcess(Topology topology) {
+        cities = topology.cities().toArray(new City[0]);
+        numStates = cities.length * (cities.length + 1);
+        pairStart = new int[numStates + 1];
+    }
+
+    public int getNumCities() {
+        return cities.length;
+    }
+
+    public int getNumStates() {
+        return numStates;
+    }
+
+    public int getNumPairs() {
+        return numPairs;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumTransitions() {
+        return numTransitions;
+    }
+
+    public City getCity(int id) {
+        return cities[id];
+    }
+
+    /**
+     * @param taskCity null if there is no task
+     */
+    public int getState(City currentCity, City taskCity) {
+        return currentCity.id * (cities.length + 1) + (taskCity == null ? cities.length : taskCity.id);
+    }
+
+    public City getCurrentCity(int state) {
+        return cities[state / (cities.length + 1)];
+    }
+
+    /**
+     * @return null if there is no task in the state
+     */
+    public City getTaskCity(int state) {
+        int task = state % (cities.length + 1);
+        return task == cities.length ? null : cities[task];
+    }
+
+    public State toState(int state) {
+        return new State(getCurrentCity(state), getTaskCity(state));
+    }
+
+    /**
+     * Adds a possible action to the state. The states must be given in increasing order.
+     *
+     * @return index of the new pair
+     */
+    public int addPair(int state, int action) {
+        while (startedStates <= state) {
+            pairStart[startedStates++] = numPairs;
+        }
+        if (numPairs == actions.length) {
+            actions = Arrays.copyOf(actions, 2 * numPairs);
+        }
+        actions[numPairs] = action;
+        return numPairs++;
+    }
+
+    /**
+     * Ends the pairs, after that the rewards and rows of the pairs can be set.
+     */
+    public void finishPairs() {
+        while (startedStates <= numStates) {
+            pairStart[startedStates++] = numPairs;
+        }
+        actions = Arrays.copyOf(actions, numPairs);
+        pairStates = new int[numPairs];
+        for (int state = 0; state < numStates; state++) {
+            Arrays.fill(pairStates, pairStart[state], pairStart[state + 1], state);
+        }
+        rewards = new double[numPairs];
+        rows = new int[numPairs];
+    }
+
+    public void setReward(int pair, double reward) {
+        rewards[pair] = reward;
+    }
+
+    /**
+     * Starts a new row of T, the transitions added after it belong to it.
+     *
+     * @return index of the new row
+     */
+    public int addRow() {
+        if (numRows + 1 == rowStart.length) {
+            rowStart = Arrays.copyOf(rowStart, 2 * rowStart.length);
+        }
+        rowStart[numRows] = numTransitions;
+        return numRows++;
+    }
+
+    /**
+     * Adds a possible successor to the last row.
+     */
+    public void addTransition(int successor, double probability) {
+        if (numTransitions == successors.length) {
+            successors = Arrays.copyOf(successors, 2 * numTransitions);
+            probabilities = Arrays.copyOf(probabilities, 2 * numTransitions);
+        }
+        successors[numTransitions] = successor;
+        probabilities[numTransitions] = probability;
+        numTransitions++;
+    }
+
+    /**
+     * Makes the row the successors of the pair.
+     */
+    public void setRow(int pair, int row) {
+        rows[pair] = row;
+    }
+
+    /**
+     * Ends the rows and builds the transposed indices, after that the process is complete.
+     */
+    public void finishTransitions() {
+        rowStart[numRows] = numTransitions;
+        rowStart = Arrays.copyOf(rowStart, numRows + 1);
+        successors = Arrays.copyOf(successors, numTransitions);
+        probabilities = Arrays.copyOf(probabilities, numTransitions);
+
+        entryRows = new int[numTransitions];
+        for (int row = 0; row < numRows; row++) {
+            Arrays.fill(entryRows, rowStart[row], rowStart[row + 1], row);
+        }
+        columnStart = new int[numStates + 1];
+        columnEntries = new int[numTransitions];
+        transpose(successors, numStates, columnStart, columnEntries);
+        rowPairStart = new int[numRows + 1];
+        rowPairs = new int[numPairs];
+        transpose(rows, numRows, rowPairStart, rowPairs);
+    }
+
+    /**
+     * Groups the indices i of the values by values[i], counting sort style.
+     */
+    private static void transpose(int[] values, int range, int[] start, int[] indices) {
+        for (int value : values) {
+            start[value + 1]++;
+        }
+        for (int value = 0; value < range; value++) {
+            start[value + 1] += start[value];
+        }
+        int[] next = Arrays.copyOf(start, range);
+        for (int i = 0; i < values.length; i++) {
+            indices[next[values[i]]++] = i;
+        }
+    }
+
+    /*
+     * The solvers loop over the arrays themselves, so they are returned as they are, not copied.
+     */
+
+    int[] getPairStart() {
+        return pairStart;
+    }
+
+    int[] getActions() {
+        return actions;
+    }
+
+    int[] getPairStates() {
+        return pairStates;
+    }
+
+    double[] getRewards() {
+        return rewards;
+    }
+
+    int[] getRows() {
+        return rows;
+    }
+
+    int[] getRowStart() {
+        return rowStart;
+    }
+
+    int[] getSuccessors() {
+        return successors;
+    }
+
+    double[] getProbabilities() {
+        return probabilities;
+    }
+
+    int[] getColumnStart() {
+        return columnStart;
+    }
+
+    int[] getColumnEntries() {
+        return columnEntries;
+    }
+
+    int[] getEntryRows() {
+        return entryRows;
+    }
+
+    int[] getRowPairStart() {
+        return rowPairStart;
+    }
+
+    int[] getRowPairs() {
+        return rowPairs;
+    }
+}
@@ -0,0 +1,159 @@
+package agents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Directory of learned policies, so that an agent does not solve the same MDP again. A policy is stored under the
+ * fingerprint of everything its solution depends on: the states, actions, R and T of the MDP, which are built from
+ * the topology, the task distribution and the cost per km, and the discount factor and epsilon. The file holds the
+ * best action and the value of every state.
+ * <p>
+ * Only policies whose solver converged are stored. Every solver then stops once no value changes by epsilon or more,
+ * so the values are within the same bound of the optimal ones whichever solver, max-iterations or evaluation-sweeps
+ * produced them, and these settings are not part of the fingerprint.
+ */
+public class PolicyCache {
+
+    private static final int MAGIC = 0x52504f4c;
+    // 2: only converged policies are stored, files of version 1 may hold policies cut off by max-iterations
+    private static final int VERSION = 2;
+    private static final int DIGEST_BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+
+    public PolicyCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return SHA-256 of the MDP, the discount factor and epsilon in hexadecimal
+     */
+    public static String fingerprint(MarkovDecisionProcess mdp, double discountFactor, double epsilon) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+        buffer.putInt(VERSION);
+        buffer.putInt(mdp.getNumCities());
+        buffer.putDouble(discountFactor);
+        buffer.putDouble(epsilon);
+        update(digest, buffer, mdp.getPairStart());
+        update(digest, buffer, mdp.getActions());
+        update(digest, buffer, mdp.getRewards());
+        update(digest, buffer, mdp.getRows());
+        update(digest, buffer, mdp.getRowStart());
+        update(digest, buffer, mdp.getSuccessors());
+        update(digest, buffer, mdp.getProbabilities());
+        buffer.flip();
+        digest.update(buffer);
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Adds the length and the values to the buffer, the full buffer is passed to the digest.
+     */
+    private static void update(MessageDigest digest, ByteBuffer buffer, int[] values) {
+        buffer.putInt(values.length);
+        for (int from = 0; from < values.length; ) {
+            int count = Math.min(values.length - from, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().put(values, from, count);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+            from += count;
+            if (from < values.length) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer buffer, double[] values) {
+        buffer.putInt(values.length);
+        for (int from = 0; from < values.length; ) {
+            int count = Math.min(values.length - from, buffer.remaining() / Double.BYTES);
+            buffer.asDoubleBuffer().put(values, from, count);
+            buffer.position(buffer.position() + count * Double.BYTES);
+            from += count;
+            if (from < values.length) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    public Path fileOf(String fingerprint) {
+        return directory.resolve("policy-" + fingerprint + ".bin");
+    }
+
+    /**
+     * Sets the policy of the fingerprint to the algorithm.
+     *
+     * @return false if the cache has no policy for the fingerprint
+     */
+    public boolean load(String fingerprint, ReinforcementLearningAlgorithm rla) throws IOException {
+        Path file = fileOf(fingerprint);
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(file + " is not a policy of this version");
+            }
+            int numStates = buffer.getInt();
+            if (numStates != rla.getBestActions().length || buffer.remaining() != numStates * 12L) {
+                throw new IOException(file + " does not fit the MDP");
+            }
+            int[] best = new int[numStates];
+            double[] values = new double[numStates];
+            buffer.asIntBuffer().get(best);
+            buffer.position(buffer.position() + numStates * Integer.BYTES);
+            buffer.asDoubleBuffer().get(values);
+            rla.setPolicy(best, values);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the policy of the algorithm under the fingerprint. The file is written next to its place and then moved
+     * there, so a reader never sees half of it.
+     */
+    public void save(String fingerprint, ReinforcementLearningAlgorithm rla) throws IOException {
+        int[] best = rla.getBestActions();
+        double[] values = rla.getValues();
+        ByteBuffer buffer = ByteBuffer.allocate(3 * Integer.BYTES + best.length * (Integer.BYTES + Double.BYTES));
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(best.length);
+        buffer.asIntBuffer().put(best);
+        buffer.position(buffer.position() + best.length * Integer.BYTES);
+        buffer.asDoubleBuffer().put(values);
+
+        Files.createDirectories(directory);
+        Path file = fileOf(fingerprint);
+        Path temporary = Files.createTempFile(directory, "policy-", ".tmp");
+        try {
+            Files.write(temporary, buffer.array());
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -9,104 +9,166 @@ import logist.task.TaskDistribution;
 import logist.topology.Topology;
 import logist.topology.Topology.City;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class ReactiveAgent implements ReactiveBehavior {
 
-    private static final Integer ACCEPT_TASK = -1;
+    private static final int ACCEPT_TASK = MarkovDecisionProcess.ACCEPT_TASK;
+    // probability of a number of available packets that calculateProbabilities treats as 0
+    private static final double NEGLIGIBLE_PROBABILITY = 1e-30;
 
     private int numActions;
     private Agent myAgent;
+    // actions between two reports of the profit, 0 for none
+    private int profitReportInterval;
 
     private double discountFactor;
     private double epsilon;
+    private ReinforcementLearningAlgorithm.Solver solver;
+    private int parallelism;
+    private int evaluationSweeps;
+    private int maxIterations;
+    // whether the packets of a city are available independently, see calculateProbabilities
+    private boolean independentTasks;
 
-    private Set<State> states;
-    private Set<Integer> actions;
+    // states, actions, R and T over dense indices
+    private MarkovDecisionProcess mdp;
 
-    private Map<State, Map<Integer, Double>> R;
-    private Map<State, Map<Integer, Map<State, Double>>> T;
-
-    private Topology topology;
     private ReinforcementLearningAlgorithm rla;
 
+    // best action of the state (i, j) at policyTable[i][j], the id of the next city or ACCEPT_TASK
+    private int[][] policyTable;
+    // move to the city with the id, the moves are immutable and shared by all decisions
+    private Action[] moves;
+
     @Override
     public void setup(Topology topology, TaskDistribution distribution, Agent agent) {
-        this.topology = topology;
         discountFactor = agent.readProperty("discount-factor", Double.class, 0.95);
         epsilon = agent.readProperty("epsilon", Double.class, 0.0001);
+        // gauss-seidel, jacobi, prioritized-sweeping, policy-iteration or modified-policy-iteration
+        solver = ReinforcementLearningAlgorithm.Solver.parse(
+                agent.readProperty("solver", String.class, "gauss-seidel"));
+        // threads of the jacobi solver, 0 uses all processors
+        parallelism = agent.readProperty("parallelism", Integer.class, 0);
+        // sweeps of the policy evaluation in modified-policy-iteration
+        evaluationSweeps = agent.readProperty("evaluation-sweeps", Integer.class, 20);
+        // most sweeps of value iteration or improvement steps of policy iteration
+        maxIterations = agent.readProperty("max-iterations", Integer.class, 100000);
+        independentTasks = agent.readProperty("independent-tasks", Boolean.class, false);
+        profitReportInterval = agent.readProperty("profit-report-interval", Integer.class, 100);
         this.numActions = 0;
         this.myAgent = agent;
 
-        this.states = new HashSet<>();
-        this.actions = new HashSet<>();
-        this.R = new HashMap<>();
-        this.T = new HashMap<>();
-
         makeStateSpace(topology);
         makeActionSpace(topology);
 
         calculateR(distribution, agent, topology);
         calculateT(distribution, topology);
 
-        rla = new ReinforcementLearningAlgorithm(
-                states, actions, topology, discountFactor, epsilon, R, T);
+        rla = new ReinforcementLearningAlgorithm(mdp, discountFactor, epsilon, solver, parallelism,
+                evaluationSweeps, maxIterations);
+        learnPolicy(agent.readProperty("policy-cache", String.class, ""));
+        makePolicyTable();
+    }
+
+    /**
+     * Copies the learned policy to a table by the ids of the current city and of the task city, and makes the move to
+     * every city once, so that act only reads arrays.
+     */
+    private void makePolicyTable() {
+        int numCities = mdp.getNumCities();
+        policyTable = new int[numCities][numCities + 1];
+        moves = new Action[numCities];
+        for (int currentCity = 0; currentCity < numCities; currentCity++) {
+            for (int taskCity = 0; taskCity <= numCities; taskCity++) {
+                if (taskCity != currentCity) {
+                    policyTable[currentCity][taskCity] = rla.getBestAction(currentCity * (numCities + 1) + taskCity);
+                }
+            }
+            moves[currentCity] = new Action.Move(mdp.getCity(currentCity));
+        }
+    }
+
+    /**
+     * Runs the reinforcement learning, unless the policy cache already has the policy of the same MDP. A new policy
+     * is added to the cache if the solver converged, a policy cut off by max-iterations is not. The cache is only an
+     * optimization, so if it can't be read or written the agent goes on without it.
+     *
+     * @param cacheDirectory directory of the policy cache, empty if there is none
+     */
+    private void learnPolicy(String cacheDirectory) {
+        if (cacheDirectory.isEmpty()) {
+            rla.reinforcementLearning();
+            return;
+        }
+
+        PolicyCache cache = new PolicyCache(Paths.get(cacheDirectory));
+        String fingerprint = PolicyCache.fingerprint(mdp, discountFactor, epsilon);
+        try {
+            if (cache.load(fingerprint, rla)) {
+                System.out.println("Loaded the policy from " + cache.fileOf(fingerprint));
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Can't load the policy from " + cache.fileOf(fingerprint) + ": " + e);
+        }
+
         rla.reinforcementLearning();
+        if (!rla.isConverged()) {
+            System.out.println("Not saving the policy, the solver stopped before it converged");
+            return;
+        }
+        try {
+            cache.save(fingerprint, rla);
+        } catch (IOException e) {
+            System.err.println("Can't save the policy to " + cache.fileOf(fingerprint) + ": " + e);
+        }
     }
 
     /**
      * State space contains two types of states:
      * 1. The agent is in the city i and there is a packet for the city j
      * 2. The agent is in the city i and there are no packets for delivery
+     * Both are indexed by the MarkovDecisionProcess, which leaves out the states where i and j are the same.
      *
      * @param topology
      */
     private void makeStateSpace(Topology topology) {
-        for (City sourceCity : topology.cities()) {
-            // agent is in the sourceCity and there is a packet to deliver to destinationCity
-            for (City destinationCity : topology.cities()) {
-                if (sourceCity.id != destinationCity.id)
-                    states.add(new State(sourceCity, destinationCity));
-            }
-
-            // agent is in the sourceCity and there are no packets to pick up
-            states.add(new State(sourceCity));
-        }
+        mdp = new MarkovDecisionProcess(topology);
     }
 
     /**
      * Actions space contains two types of actions:
      * 1. go to the city i without the package
      * 2. accept the packet
+     * Only the actions that are possible in a state are added to it: moving to the neighbouring cities, in the order
+     * of their ids, and accepting the task if there is one.
      *
      * @param topology
-     * @return
      */
     private void makeActionSpace(Topology topology) {
-        // go to each city without a package
-        for (City city : topology.cities()) {
-            actions.add(city.id);
-        }
-        // accept task
-        actions.add(ACCEPT_TASK);
-    }
-
-    private static City getCityById(int id, Topology topology) {
+        int[][] neighbors = new int[mdp.getNumCities()][];
         for (City city : topology.cities()) {
-            if (city.id == id)
-                return city;
+            neighbors[city.id] = city.neighbors().stream().mapToInt(neighbor -> neighbor.id).sorted().toArray();
         }
-        return null;
-    }
-
-
-    public static boolean isActionPossible(State state, Integer action, Topology topology) {
-        if (action.equals(ACCEPT_TASK)) { // accept the task and the destination city exists
-            return state.getTaskCity() != null;
+        for (int state = 0; state < mdp.getNumStates(); state++) {
+            City currentCity = mdp.getCurrentCity(state);
+            City taskCity = mdp.getTaskCity(state);
+            if (currentCity == taskCity) {  // not a state
+                continue;
+            }
+            // go to each neighbouring city without a package
+            for (int neighbor : neighbors[currentCity.id]) {
+                mdp.addPair(state, neighbor);
+            }
+            // accept task
+            if (taskCity != null) {
+                mdp.addPair(state, ACCEPT_TASK);
+            }
         }
-        // refusing or simply moving to another city is possible if it is neighboring city
-        return state.getCurrentCity().hasNeighbor(getCityById(action, topology));
+        mdp.finishPairs();
     }
 
     /**
@@ -121,64 +183,60 @@ public class ReactiveAgent implements ReactiveBehavior {
     private void calculateR(TaskDistribution distribution, Agent agent, Topology topology) {
         // note: we assume that we only have one company and one vehicle (reactive agent)
         int transitPrice = agent.vehicles().get(0).costPerKm();
-        for (State state : states) {
-            Map<Integer, Double> RforFixedState = new HashMap<>();
-            for (int action : actions) {
-                City nextCity = getCityById(action, topology);
-
-                if (action != ACCEPT_TASK && nextCity != null &&
-                        state.getCurrentCity().hasNeighbor(nextCity)) {     // no task or refuse a task
-                    RforFixedState.put(action, -transitPrice * state.getCurrentCity().distanceTo(nextCity));
-                } else if (action == ACCEPT_TASK && state.getTaskCity() != null) {  // accepting a task
-                    RforFixedState.put(ACCEPT_TASK,
-                            distribution.reward(state.getCurrentCity(), state.getTaskCity())
-                                    - transitPrice * state.getCurrentCity().distanceTo(state.getTaskCity()));
+        int[] pairStart = mdp.getPairStart();
+        int[] actions = mdp.getActions();
+        for (int state = 0; state < mdp.getNumStates(); state++) {
+            City currentCity = mdp.getCurrentCity(state);
+            City taskCity = mdp.getTaskCity(state);
+            for (int pair = pairStart[state]; pair < pairStart[state + 1]; pair++) {
+                if (actions[pair] != ACCEPT_TASK) {     // no task or refuse a task
+                    mdp.setReward(pair, -transitPrice * currentCity.distanceTo(mdp.getCity(actions[pair])));
+                } else {  // accepting a task
+                    mdp.setReward(pair, distribution.reward(currentCity, taskCity)
+                            - transitPrice * currentCity.distanceTo(taskCity));
                 }
             }
-            R.put(state, RforFixedState);
         }
     }
 
     /**
-     * T.get(s).get(a).get(s') represents the probability that an agent ends up in the state s' if it is in state s and
-     * does an action a.
+     * T(s,a,s') represents the probability that an agent ends up in the state s' if it is in state s and does an
+     * action a. Whether the agent accepts the task or moves without it, it ends up in the city the action leads to and
+     * the next state is one of the states of that city, with the probability of the task it sees there. So T has one
+     * row per city, holding the states of the city, and every state-action pair uses the row of the city it leads to.
      *
      * @param distribution
      */
     private void calculateT(TaskDistribution distribution, Topology topology) {
-        for (State initialState : states) {
-            for (Integer action : actions) {
-
-                for (State nextState : states) {
-                    // if the agent decides to accept the task, the destination city of the current state and
-                    // the current city of the next state must be the same
-                    if ((action.equals(ACCEPT_TASK) && initialState.getTaskCity() == nextState.getCurrentCity())
-                            // if the agent decides to refuse the task or there are no tasks its action represents the
-                            // next city it wants to go to, plus that next city needs to be neighbour city of the city
-                            // it is currently at
-                            || (!action.equals(ACCEPT_TASK) && nextState.getCurrentCity().id == action
-                            && initialState.getCurrentCity().hasNeighbor(nextState.getCurrentCity()))) {
-
-                        T.putIfAbsent(initialState, new HashMap<>());
-                        T.get(initialState).putIfAbsent(action, new HashMap<>());
-
-                        //distribution.probability(city, null) gives the probability that there are no task in city
-                        T.get(initialState).get(action).put(nextState,
-                                distribution.probability(nextState.getCurrentCity(), nextState.getTaskCity()));
-
-                        // in the case we actually need what is written in the documentation
-//                        if (nextState.getTaskCity() != null) { // there are no packets in the next state
-//                            T.get(initialState).get(action).put(nextState,
-//                                    distribution.probability(nextState.getCurrentCity(), null));
-//                        } else {
-//                            T.get(initialState).get(action).
-//                                    put(nextState, calculateProbability(distribution, nextState.getCurrentCity(),
-//                                            nextState.getTaskCity(), topology));
-//                        }
-                    }
+        int[] cityRows = new int[mdp.getNumCities()];
+        for (City nextCity : topology.cities()) {
+            cityRows[nextCity.id] = mdp.addRow();
+            // in the case we actually need what is written in the documentation, the probabilities of the tasks are
+            // the probabilities that they are shown
+            double[] taskProbabilities = independentTasks ? calculateProbabilities(distribution, nextCity, topology)
+                    : null;
+            for (City nextTaskCity : topology.cities()) {
+                if (nextTaskCity != nextCity) {
+                    mdp.addTransition(mdp.getState(nextCity, nextTaskCity), independentTasks
+                            ? taskProbabilities[nextTaskCity.id] : distribution.probability(nextCity, nextTaskCity));
                 }
             }
+            //distribution.probability(city, null) gives the probability that there are no task in city
+            mdp.addTransition(mdp.getState(nextCity, null), independentTasks
+                    ? taskProbabilities[topology.size()] : distribution.probability(nextCity, null));
+        }
+
+        int[] pairStart = mdp.getPairStart();
+        int[] actions = mdp.getActions();
+        for (int initialState = 0; initialState < mdp.getNumStates(); initialState++) {
+            for (int pair = pairStart[initialState]; pair < pairStart[initialState + 1]; pair++) {
+                // if the agent decides to accept the task, it ends up in the destination city of the task, otherwise
+                // its action represents the next city it wants to go to
+                int nextCity = actions[pair] == ACCEPT_TASK ? mdp.getTaskCity(initialState).id : actions[pair];
+                mdp.setRow(pair, cityRows[nextCity]);
+            }
         }
+        mdp.finishTransitions();
     }
 
     /**
@@ -192,54 +250,89 @@ public class ReactiveAgent implements ReactiveBehavior {
      * Summing up the distribution.probability(x,y) for fixed x and all possible y (including null) we got
      * the result 1 for all x. There we understood the meaning of "relative", but we are still confused
      * because of the paragraph about multiple tasks. We believe that this is just given as an explanation
-     * that everything behind the scenes in the logist part is already calculated in proper manner
+     * that everything behind the scenes in the logist part is already calculated in proper manner.
+     * The model is used when the property independent-tasks is true.
+     * <p>
+     * The packet for nextCity is shown if it is available and chosen among the M other available packets, so the
+     * probability is p(currentCity, nextCity) * E[1 / (M + 1)]. M is a sum of independent Bernoulli variables, so its
+     * distribution is built one city at a time in O(n^2). The distribution without nextCity is then recovered from
+     * it in O(n) by undoing the step of nextCity, in the direction in which rounding errors shrink. Both only cover
+     * the numbers of packets whose probability is not negligible. No packet is shown with the probability that none
+     * is available.
      * @param distribution
      * @param currentCity
-     * @param nextCity
-     * @return
+     * @param topology
+     * @return the probability of every packet by the id of its destination and at index n that there is none
      */
-    private Double calculateProbability(TaskDistribution distribution, City currentCity, City nextCity, Topology topology) {
-        //calculate the probability that over all possible choices of shown packets the packet from currentCity
-        //  to nextCity is chosen
-        //iterate over all subsets of cities that contain the city currentCity
-        //if city x is presented in the subset that means that the task for city x is shown to the logist
-        double probability = 0d;
-        List<City> filteredCities = topology.cities().stream().filter(
-                city -> !city.equals(currentCity) && !city.equals(nextCity)).collect(Collectors.toList());
-        //current contains of 0s and 1s, if the i-th bit is 1, it means that i-th city in the filtered list
-        //is in the subset
-        String current = "0".repeat(filteredCities.size());
-        String finished = "1".repeat(filteredCities.size());
-        //number of packages shown to the logist
-        long numberOfCitiesInSubset;
-
-        while (!current.equals(finished)) {
-            //currentProbability accumulates the probability of having particular subset of packets
-            double currentProbability = 1d;
-            for (int i = 0; i < current.length(); i++) {
-                if (current.charAt(i) == '1') {
-                    //multiplying with probability that the packet for i-th city is shown
-                    currentProbability *= distribution.probability(currentCity, filteredCities.get(i));
-                } else {
-                    //multiplying with probability that the packet for i-th city is not shown
-                    currentProbability *= 1 - distribution.probability(currentCity, filteredCities.get(i));
-                }
+    private static double[] calculateProbabilities(TaskDistribution distribution, City currentCity,
+                                                   Topology topology) {
+        int n = topology.size();
+        double[] available = new double[n];
+        for (City city : topology.cities()) {
+            if (city != currentCity) {
+                available[city.id] = distribution.probability(currentCity, city);
             }
+        }
 
-            // add 1 because the packet for nextCity is definitely in the subset
-            numberOfCitiesInSubset = current.chars().filter(bit -> bit == '1').count() + 1;
-
-            //add probability for this particular subset
-            // divide by numberOfCitiesInSubset because logist chooses one packet from the subset randomly
-            // multiplied by probability(currentCity, nextCity) because the packet for nextCity is definitely in the subset
-            // multiplied by current probability to have chosen subset
-            probability += 1.0 / (numberOfCitiesInSubset) * distribution.probability(currentCity, nextCity) * currentProbability;
+        // count[m] is the probability that m packets are available, it is negligible outside of [low, high]
+        double[] count = new double[n];
+        count[0] = 1.0;
+        int low = 0;
+        int high = 0;
+        int others = 0;
+        for (City city : topology.cities()) {
+            if (city == currentCity) {
+                continue;
+            }
+            double p = available[city.id];
+            others++;
+            high++;
+            for (int m = high; m > low; m--) {
+                count[m] = count[m] * (1 - p) + count[m - 1] * p;
+            }
+            count[low] *= 1 - p;
+            // the tails would soon be subnormal numbers, which are very slow to compute with
+            while (high > low && count[high] < NEGLIGIBLE_PROBABILITY) {
+                count[high--] = 0.0;
+            }
+            while (low < high && count[low] < NEGLIGIBLE_PROBABILITY) {
+                count[low++] = 0.0;
+            }
+        }
 
-            //prepare bits for next iteration
-            String temp = Integer.toBinaryString(Integer.valueOf(current, 2) + 1);
-            current = "0".repeat(filteredCities.size() - temp.length()) + temp;
+        double[] probabilities = new double[n + 1];
+        probabilities[n] = count[0];
+        // probability that m packets other than the one for nextCity are available, it is at most twice count[m]
+        // or count[m + 1], so it is only computed where they are not negligible
+        double[] countWithout = new double[Math.max(others, 1)];
+        for (City nextCity : topology.cities()) {
+            if (nextCity == currentCity) {
+                continue;
+            }
+            double p = available[nextCity.id];
+            int from = Math.max(low - 1, 0);
+            int to = Math.min(high, others - 1);
+            Arrays.fill(countWithout, from, to + 1, 0.0);
+            if (p <= 0.5) {
+                double inverse = 1 / (1 - p);
+                countWithout[from] = count[from] * inverse;
+                for (int m = from + 1; m <= to; m++) {
+                    countWithout[m] = (count[m] - p * countWithout[m - 1]) * inverse;
+                }
+            } else {
+                double inverse = 1 / p;
+                countWithout[to] = count[to + 1] * inverse;
+                for (int m = to - 1; m >= from; m--) {
+                    countWithout[m] = (count[m + 1] - (1 - p) * countWithout[m + 1]) * inverse;
+                }
+            }
+            double shown = 0.0;
+            for (int m = from; m <= to; m++) {
+                shown += Math.max(countWithout[m], 0.0) / (m + 1);
+            }
+            probabilities[nextCity.id] = p * shown;
         }
-        return probability;
+        return probabilities;
     }
 
     /**
@@ -253,18 +346,15 @@ public class ReactiveAgent implements ReactiveBehavior {
     public Action act(Vehicle vehicle, Task availableTask) {
         Action action;
 
-        City currentCity = vehicle.getCurrentCity();
-        City deliveryCity = availableTask != null ? availableTask.deliveryCity : null;
-        State currentState = new State(currentCity, deliveryCity);
-
-        Integer bestAction = rla.getBest().get(currentState);
-        if (availableTask != null && bestAction.equals(ACCEPT_TASK)) {
+        int[] cityPolicy = policyTable[vehicle.getCurrentCity().id];
+        int bestAction = cityPolicy[availableTask != null ? availableTask.deliveryCity.id : cityPolicy.length - 1];
+        if (bestAction == ACCEPT_TASK) {
             action = new Action.Pickup(availableTask);
         } else {
-            action = new Action.Move(getCityById(bestAction, topology));
+            action = moves[bestAction];
         }
 
-        if (numActions >= 1) {
+        if (numActions >= 1 && profitReportInterval > 0 && numActions % profitReportInterval == 0) {
             System.out.println("Agent id " + myAgent.id() + ": The total profit after " + numActions + " actions is " + myAgent.getTotalProfit() +
                     " (average profit: " + (myAgent.getTotalProfit() / (double) numActions) + ")");
         }
@@ -1,96 +1,564 @@
 package agents;
 
-import logist.topology.Topology;
-
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
 
+/**
+ * Value iteration and policy iteration on a {@link MarkovDecisionProcess}. Every solver stops when no value would
+ * change by epsilon or more anymore, or after maxIterations sweeps or improvement steps, and keeps the expected value
+ * of every row of T, so backing up a state only costs its number of actions.
+ */
 public class ReinforcementLearningAlgorithm {
 
-    private Set<State> states;
-    private Set<Integer> actions;
-    private double discountFactor;
-    private double epsilon;
+    public enum Solver {
+        // sweeps in place, a backup already uses the values updated earlier in the same sweep
+        GAUSS_SEIDEL,
+        // sweeps in parallel from the values of the previous sweep
+        JACOBI,
+        // backs up the states whose values are likely to change the most first
+        PRIORITIZED_SWEEPING,
+        // evaluates the greedy policy until its values are accurate, then improves it
+        POLICY_ITERATION,
+        // evaluates the greedy policy with evaluationSweeps sweeps, then improves it
+        MODIFIED_POLICY_ITERATION;
+
+        /**
+         * @param name e.g. gauss-seidel
+         */
+        public static Solver parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    // states backed up by one task of the parallel solver
+    private static final int BLOCK_SIZE = 1024;
 
-    private Map<State, Map<Integer, Double>> R;
-    private Map<State, Map<Integer, Map<State, Double>>> T;
+    private final MarkovDecisionProcess mdp;
+    private final double discountFactor;
+    private final double epsilon;
+    private final Solver solver;
+    // threads of the Jacobi solver, 0 uses all processors
+    private final int parallelism;
+    // sweeps of the policy evaluation in modified policy iteration
+    private final int evaluationSweeps;
+    // most sweeps of value iteration or improvement steps of policy iteration
+    private final int maxIterations;
+
+    private final int[] pairStart;
+    private final int[] actions;
+    private final double[] R;
+    private final int[] rows;
 
     // best action from a state
-    private Map<State, Integer> best;
+    private final int[] best;
+    // best state-action pair of a state
+    private final int[] policy;
     // best action and its accumulated value
-    private Map<State, Double> V;
-    private Map<State, Map<Integer, Double>> Q;
-
-    public ReinforcementLearningAlgorithm(Set<State> states, Set<Integer> actions, Topology topology,
-                                          double discountFactor, double epsilon, Map<State, Map<Integer, Double>> R,
-                                          Map<State, Map<Integer, Map<State, Double>>> T) {
-        this.states = states;
-        this.actions = actions;
+    private double[] V;
+    // value of every state-action pair
+    private final double[] Q;
+
+    // whether the last run stopped because no value changed by epsilon or more, not at maxIterations
+    private boolean converged;
+    // statistics of the last run
+    private int sweeps;
+    private int improvements;
+    private long backups;
+    private long nanos;
+
+    public ReinforcementLearningAlgorithm(MarkovDecisionProcess mdp, double discountFactor, double epsilon) {
+        this(mdp, discountFactor, epsilon, Solver.GAUSS_SEIDEL, 0, 20, Integer.MAX_VALUE);
+    }
+
+    public ReinforcementLearningAlgorithm(MarkovDecisionProcess mdp, double discountFactor, double epsilon,
+                                          Solver solver, int parallelism, int evaluationSweeps, int maxIterations) {
+        this.mdp = mdp;
         this.discountFactor = discountFactor;
         this.epsilon = epsilon;
-        this.R = R;
-        this.T = T;
-
-        best = new HashMap<>();
-        V = new HashMap<>();
-        Q = new HashMap<>();
-        for (State state : this.states) {
-            V.put(state, 0.0);
-            Q.put(state, new HashMap<>());
-
-            for (Integer action : this.actions) {
-                if (ReactiveAgent.isActionPossible(state, action, topology)) {
-                    Q.get(state).put(action, 0.0);
-                }
+        this.solver = solver;
+        this.parallelism = parallelism;
+        this.evaluationSweeps = evaluationSweeps;
+        this.maxIterations = maxIterations;
+
+        pairStart = mdp.getPairStart();
+        actions = mdp.getActions();
+        R = mdp.getRewards();
+        rows = mdp.getRows();
+
+        best = new int[mdp.getNumStates()];
+        policy = new int[mdp.getNumStates()];
+        V = new double[mdp.getNumStates()];
+        Q = new double[mdp.getNumPairs()];
+    }
+
+    public void reinforcementLearning() {
+        converged = false;
+        sweeps = 0;
+        improvements = 0;
+        backups = 0;
+        long start = System.nanoTime();
+        switch (solver) {
+            case GAUSS_SEIDEL:
+                iterateInPlace();
+                break;
+            case JACOBI:
+                iterateInParallel();
+                break;
+            case PRIORITIZED_SWEEPING:
+                sweepByPriority();
+                break;
+            case POLICY_ITERATION:
+                iteratePolicy(Integer.MAX_VALUE, epsilon * (1 - discountFactor) / discountFactor);
+                break;
+            case MODIFIED_POLICY_ITERATION:
+                iteratePolicy(evaluationSweeps, 0.0);
+                break;
+        }
+        nanos = System.nanoTime() - start;
+
+        System.out.println("Solver " + solver + ": " + sweeps + " sweeps, " + improvements + " improvements, "
+                + backups + " backups, " + nanos / 1000000 + " ms" + (converged ? "" : ", not converged"));
+        System.out.println("Best(S): " + getBest());
+        System.out.println("V(S): " + getV());
+        System.out.println("2 * epsilon * y / (1 - y) = " + 2*epsilon*discountFactor/(1-discountFactor));
+    }
+
+    private boolean isState(int state) {
+        return pairStart[state] < pairStart[state + 1];
+    }
+
+    /**
+     * Computes the Q values of the state from the expected values of the rows and sets its best action and pair.
+     *
+     * @return value of the best action
+     */
+    private double backUp(int state, double[] expected) {
+        int bestPair = -1;
+        double bestValue = Double.NEGATIVE_INFINITY;
+        for (int pair = pairStart[state]; pair < pairStart[state + 1]; pair++) {
+            double value = R[pair] + discountFactor * expected[rows[pair]];
+            Q[pair] = value;
+            if (value > bestValue) {
+                bestPair = pair;
+                bestValue = value;
             }
         }
+        best[state] = actions[bestPair];
+        policy[state] = bestPair;
+        return bestValue;
     }
 
-    public void reinforcementLearning() {
-        int steps = 0;
+    private double expectedValue(int row, double[] values) {
+        int[] rowStart = mdp.getRowStart();
+        int[] successors = mdp.getSuccessors();
+        double[] probabilities = mdp.getProbabilities();
+        double expected = 0.0;
+        for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+            expected += probabilities[k] * values[successors[k]];
+        }
+        return expected;
+    }
 
+    private double[] expectedValues(double[] values) {
+        double[] expected = new double[mdp.getNumRows()];
+        for (int row = 0; row < expected.length; row++) {
+            expected[row] = expectedValue(row, values);
+        }
+        return expected;
+    }
+
+    /**
+     * Backs up the state in place, see {@link #setValue(int, double, double[], double[], RowQueue, double)}.
+     *
+     * @return change of the value of the state
+     */
+    private double backUpInPlace(int state, double[] expected, double[] pending, RowQueue queue, double threshold) {
+        return setValue(state, backUp(state, expected), expected, pending, queue, threshold);
+    }
+
+    /**
+     * Sets the value of the state and adds its change to the expected values of the rows it is in. With pending
+     * changes, the sizes of those changes are added to them and the rows are updated in the queue.
+     *
+     * @return change of the value of the state
+     */
+    private double setValue(int state, double value, double[] expected, double[] pending, RowQueue queue,
+                            double threshold) {
+        int[] columnStart = mdp.getColumnStart();
+        int[] columnEntries = mdp.getColumnEntries();
+        int[] entryRows = mdp.getEntryRows();
+        double[] probabilities = mdp.getProbabilities();
+        double difference = value - V[state];
+        V[state] = value;
+        backups++;
+        for (int c = columnStart[state]; c < columnStart[state + 1]; c++) {
+            int k = columnEntries[c];
+            int row = entryRows[k];
+            double change = probabilities[k] * difference;
+            expected[row] += change;
+            if (pending != null) {
+                pending[row] += Math.abs(change);
+            }
+            if (queue != null) {
+                queue.update(row, threshold);
+            }
+        }
+        return difference;
+    }
+
+    /**
+     * Gauss-Seidel value iteration. The expected values of the rows are updated with every new value and computed
+     * anew at the start of every sweep, so rounding errors do not add up.
+     */
+    private void iterateInPlace() {
         while (true) {
+            double[] expected = expectedValues(V);
             double maxDifference = 0.0;
 
-            for (State state : Q.keySet()) {
-                for (Integer action : Q.get(state).keySet()) {
-                    double value = R.get(state).get(action);
-                    for (State nextState: T.get(state).get(action).keySet()) {
-                        value += discountFactor * T.get(state).get(action).get(nextState) * V.get(nextState);
-                    }
+            for (int state = 0; state < V.length; state++) {
+                if (!isState(state)) {
+                    continue;
+                }
+                double difference = backUpInPlace(state, expected, null, null, 0.0);
+                maxDifference = Math.max(Math.abs(difference), maxDifference);
+            }
+            sweeps++;
 
-                    Q.get(state).put(action, value);
+            //  algorithm stops whenever there is no significant change in V
+            if (maxDifference < epsilon || sweeps >= maxIterations) {
+                System.out.println("maxDifference = " + maxDifference);
+                converged = maxDifference < epsilon;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Jacobi value iteration: a sweep only uses the values of the previous sweep, so the new values go to a second
+     * array and the blocks of states are backed up in parallel, as are the expected values of the rows.
+     */
+    private void iterateInParallel() {
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+        double[] expected = new double[mdp.getNumRows()];
+        double[] nextV = new double[V.length];
+        int blocks = (V.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long states = IntStream.range(0, V.length).filter(this::isState).count();
+
+        try {
+            while (true) {
+                double[] currentV = V;
+                double[] newV = nextV;
+                pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, expected.length).parallel()
+                        .forEach(row -> expected[row] = expectedValue(row, currentV))));
+                double maxDifference = pool.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, blocks).parallel()
+                        .mapToDouble(block -> backUpBlock(block, expected, currentV, newV)).max().orElse(0.0)));
+                nextV = V;
+                V = newV;
+                sweeps++;
+                backups += states;
+
+                //  algorithm stops whenever there is no significant change in V
+                if (maxDifference < epsilon || sweeps >= maxIterations) {
+                    System.out.println("maxDifference = " + maxDifference);
+                    converged = maxDifference < epsilon;
+                    return;
                 }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return largest change of a value in the block
+     */
+    private double backUpBlock(int block, double[] expected, double[] currentV, double[] newV) {
+        double maxDifference = 0.0;
+        for (int state = block * BLOCK_SIZE; state < Math.min((block + 1) * BLOCK_SIZE, currentV.length); state++) {
+            if (!isState(state)) {
+                continue;
+            }
+            double bestValue = backUp(state, expected);
+            maxDifference = Math.max(Math.abs(currentV[state] - bestValue), maxDifference);
+            newV[state] = bestValue;
+        }
+        return maxDifference;
+    }
+
+    /**
+     * Prioritized sweeping. All states of a city feed one row of T, so a change of one value reaches every state
+     * that can go to the city. The priorities are therefore kept per row: the pending change of a row is the sum of
+     * the changes of its expected value since the states using it were last backed up. The row with the largest
+     * pending change is taken first, its pending change is cleared and all states with an action using it are backed
+     * up in place.
+     * <p>
+     * The Bellman residual of a state is at most discountFactor times the pending changes of the rows its actions
+     * use, so once every pending change is below epsilon / (discountFactor * most actions of a state), every residual
+     * is below epsilon, like after the last sweep of value iteration. The best actions are then taken greedily from
+     * the final values in one more pass.
+     */
+    private void sweepByPriority() {
+        int[] rowPairStart = mdp.getRowPairStart();
+        int[] rowPairs = mdp.getRowPairs();
+        int[] pairStates = mdp.getPairStates();
+
+        int mostActions = 1;
+        for (int state = 0; state < V.length; state++) {
+            mostActions = Math.max(pairStart[state + 1] - pairStart[state], mostActions);
+        }
+        double threshold = epsilon / (discountFactor * mostActions);
 
-                Integer bestAction = null;
-                double bestValue = Double.MIN_VALUE;
-                for (Integer action : Q.get(state).keySet()) {
-                    double currentValue = Q.get(state).get(action);
-                    if (currentValue > bestValue) {
-                        bestAction = action;
-                        bestValue = currentValue;
-                    }
+        double[] expected = expectedValues(V);
+        double[] pending = new double[mdp.getNumRows()];
+        for (int state = 0; state < V.length; state++) {
+            if (isState(state)) {
+                backUpInPlace(state, expected, pending, null, threshold);
+            }
+        }
+        sweeps++;
+
+        RowQueue queue = new RowQueue(pending);
+        for (int row = 0; row < pending.length; row++) {
+            queue.update(row, threshold);
+        }
+        while (!queue.isEmpty()) {
+            int row = queue.poll();
+            pending[row] = 0.0;
+            int previous = -1;
+            for (int c = rowPairStart[row]; c < rowPairStart[row + 1]; c++) {
+                // the pairs of a state are consecutive, back up the state once
+                int state = pairStates[rowPairs[c]];
+                if (state != previous) {
+                    backUpInPlace(state, expected, pending, queue, threshold);
+                    previous = state;
                 }
+            }
+        }
+
+        double maxDifference = 0.0;
+        expected = expectedValues(V);
+        for (int state = 0; state < V.length; state++) {
+            if (isState(state)) {
+                maxDifference = Math.max(Math.abs(backUp(state, expected) - V[state]), maxDifference);
+            }
+        }
+        sweeps++;
+        System.out.println("maxDifference = " + maxDifference);
+        converged = maxDifference < epsilon;
+    }
+
+    /**
+     * Policy iteration. An improvement step is a Gauss-Seidel sweep that makes every state take its greedy action
+     * and backs its value up, then the policy is evaluated with in-place sweeps that only back up its actions, which
+     * solves the linear system of the policy iteratively. It stops like value iteration when the improvement step
+     * changes no value by epsilon or more, or when the policy did not change after a full evaluation.
+     *
+     * @param maxSweeps most evaluation sweeps after an improvement step
+     * @param tolerance the evaluation stops when no value changes by this much or more
+     */
+    private void iteratePolicy(int maxSweeps, double tolerance) {
+        int[] previousPolicy = new int[policy.length];
+        Arrays.fill(policy, -1);
 
-                maxDifference = Math.max(Math.abs(V.get(state) - bestValue), maxDifference);
-                best.put(state, bestAction);
-                V.put(state, bestValue);
+        while (true) {
+            System.arraycopy(policy, 0, previousPolicy, 0, policy.length);
+            double[] expected = expectedValues(V);
+            double maxDifference = 0.0;
+            for (int state = 0; state < V.length; state++) {
+                if (isState(state)) {
+                    double difference = backUpInPlace(state, expected, null, null, 0.0);
+                    maxDifference = Math.max(Math.abs(difference), maxDifference);
+                }
             }
+            sweeps++;
+            improvements++;
 
-            //  algorithm stops whenever there is no significant change in V
-            if (maxDifference < epsilon) {
+            boolean stable = maxSweeps == Integer.MAX_VALUE && Arrays.equals(policy, previousPolicy);
+            if (maxDifference < epsilon || stable || improvements >= maxIterations) {
                 System.out.println("maxDifference = " + maxDifference);
-                break;
+                converged = maxDifference < epsilon || stable;
+                return;
             }
-            steps++;
+            evaluatePolicy(maxSweeps, tolerance);
         }
+    }
 
-        System.out.println("Number of steps: " + steps);
-        System.out.println("Best(S): " + best);
-        System.out.println("V(S): " + V);
-        System.out.println("2 * epsilon * y / (1 - y) = " + 2*epsilon*discountFactor/(1-discountFactor));
+    private void evaluatePolicy(int maxSweeps, double tolerance) {
+        for (int sweep = 0; sweep < maxSweeps; sweep++) {
+            double[] expected = expectedValues(V);
+            double maxDifference = 0.0;
+            for (int state = 0; state < V.length; state++) {
+                if (isState(state)) {
+                    int pair = policy[state];
+                    double value = R[pair] + discountFactor * expected[rows[pair]];
+                    double difference = setValue(state, value, expected, null, null, 0.0);
+                    maxDifference = Math.max(Math.abs(difference), maxDifference);
+                }
+            }
+            sweeps++;
+            if (maxDifference < tolerance) {
+                return;
+            }
+        }
     }
 
-    public Map<State, Integer> getBest() {
+    /**
+     * Indexed binary max-heap of the rows whose pending change reaches a threshold, ordered by their pending changes.
+     */
+    private static final class RowQueue {
+
+        private final double[] pending;
+        private final int[] heap;
+        // position of every row in the heap, -1 if it is not in it
+        private final int[] position;
+        private int size = 0;
+
+        RowQueue(double[] pending) {
+            this.pending = pending;
+            heap = new int[pending.length];
+            position = new int[pending.length];
+            Arrays.fill(position, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Inserts the row or moves it up after its pending change grew, if the change reaches the threshold.
+         */
+        void update(int row, double threshold) {
+            if (pending[row] < threshold) {
+                return;
+            }
+            if (position[row] < 0) {
+                heap[size] = row;
+                position[row] = size++;
+            }
+            siftUp(position[row]);
+        }
+
+        int poll() {
+            int row = heap[0];
+            position[row] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                position[heap[0]] = 0;
+                siftDown(0);
+            }
+            return row;
+        }
+
+        private void siftUp(int index) {
+            int row = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (pending[heap[parent]] >= pending[row]) {
+                    break;
+                }
+                move(heap[parent], index);
+                index = parent;
+            }
+            move(row, index);
+        }
+
+        private void siftDown(int index) {
+            int row = heap[index];
+            while (2 * index + 1 < size) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && pending[heap[child + 1]] > pending[heap[child]]) {
+                    child++;
+                }
+                if (pending[heap[child]] <= pending[row]) {
+                    break;
+                }
+                move(heap[child], index);
+                index = child;
+            }
+            move(row, index);
+        }
+
+        private void move(int row, int index) {
+            heap[index] = row;
+            position[row] = index;
+        }
+    }
+
+    /**
+     * @return best action of the state, the id of the next city or {@link MarkovDecisionProcess#ACCEPT_TASK}
+     */
+    public int getBestAction(int state) {
+        return best[state];
+    }
+
+    public double getValue(int state) {
+        return V[state];
+    }
+
+    /*
+     * The policy cache reads and writes the arrays as they are.
+     */
+
+    int[] getBestActions() {
         return best;
     }
+
+    double[] getValues() {
+        return V;
+    }
+
+    /**
+     * Sets a policy that was learned before instead of learning it.
+     */
+    void setPolicy(int[] bestActions, double[] values) {
+        System.arraycopy(bestActions, 0, best, 0, best.length);
+        System.arraycopy(values, 0, V, 0, V.length);
+    }
+
+    /**
+     * @return false if the last run was stopped after maxIterations sweeps or improvement steps before its values
+     * changed by less than epsilon
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    public int getSweeps() {
+        return sweeps;
+    }
+
+    public int getImprovements() {
+        return improvements;
+    }
+
+    public long getBackups() {
+        return backups;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public Map<State, Integer> getBest() {
+        Map<State, Integer> bestByState = new HashMap<>();
+        for (int state = 0; state < best.length; state++) {
+            if (isState(state)) {
+                bestByState.put(mdp.toState(state), best[state]);
+            }
+        }
+        return bestByState;
+    }
+
+    public Map<State, Double> getV() {
+        Map<State, Double> valueByState = new HashMap<>();
+        for (int state = 0; state < V.length; state++) {
+            if (isState(state)) {
+                valueByState.put(mdp.toState(state), V[state]);
+            }
+        }
+        return valueByState;
+    }
 }